@@ -1,82 +1,305 @@
 import com.couchbase.client.core.env.TimeoutConfig;
-import com.couchbase.client.core.error.AmbiguousTimeoutException;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.ClusterOptions;
 import com.couchbase.client.java.Collection;
 import com.couchbase.client.java.env.ClusterEnvironment;
 import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.query.QueryOptions;
 
-import java.text.MessageFormat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 public class CouchbaseSync {
 
-	public static void main(String[] args) {
-		ClusterEnvironment env = ClusterEnvironment.builder()
-				.timeoutConfig(TimeoutConfig.kvTimeout(Duration.ofMinutes(10))).build();
-		Cluster cluster0 = Cluster.connect("LOCAL", "USERNAME", "PASSWORD");
-		Cluster cluster1 = Cluster.connect("DEV",
-				ClusterOptions.clusterOptions("USERNAME", "PASSWORD").environment(env));
-		Collection collection0 = cluster0.bucket("BUCKET").defaultCollection();
+	public static void main(String[] args) throws InterruptedException, ExecutionException, IOException {
 		int pageSize = 10000;
-		int pageNumber = 1;
-		boolean completed = false;
-		String queryFormat = "SELECT `BUCKET`.* FROM `BUCKET` WHERE document_type IS NOT MISSING LIMIT {0} OFFSET {1}";
-		AtomicInteger totalCount = new AtomicInteger((pageNumber - 1) * pageSize);
-		System.out.println("Start");
-		String pageCountQuery = MessageFormat
-				.format("SELECT CEIL(COUNT(*)/{0}) as count FROM `BUCKET` WHERE document_type IS NOT MISSING",
-						String.valueOf(pageSize).replace(",", ""));
-		System.out.println(pageCountQuery);
-		int totalPages = cluster1.query(pageCountQuery).rowsAsObject().get(0).getInt("count");
-		while (!completed) {
-			System.out.println("Get page (" + pageNumber++ + "/" + totalPages + ")");
-			String query = MessageFormat.format(queryFormat, pageSize, totalCount.get()).replace(",", "");
-			System.out.println(query);
-			List<JsonObject> result = cluster1.query(query).rowsAsObject();
-			completed = result.size() < pageSize;
-			if (!result.isEmpty()) {
-				System.out.println("Upserting " + result.size());
-				result.forEach(jsonObject -> {
-					totalCount.getAndIncrement();
-					String key = jsonObject.getString("guid");
-					if (key != null) {
-						try {
-							collection0.upsert(key, jsonObject);
-						} catch (AmbiguousTimeoutException e) {
-							try {
-								Thread.sleep(1000);
-								collection0.upsert(key, jsonObject);
-							} catch (InterruptedException ex) {
-								ex.printStackTrace();
-							}
-						}
-					}
-				});
+		int prefetch = 1000;
+		int partitionCount = 8;
+		int maxInFlight = 32;
+		Duration targetLatency = Duration.ofMillis(250);
+		// Read the target copies first and only upsert documents whose content differs, an extra read per document
+		// that only pays off when a rerun finds most documents unchanged
+		boolean skipUnchanged = false;
+		// Documents that fail after their retries, replay them with the argument "replay"
+		Path deadLetterPath = Paths.get("couchbase-sync-dead-letters.jsonl");
+		Path checkpointPath = Paths.get("couchbase-sync-checkpoint.json");
+		// Status line interval, JSON snapshot of the metrics and local Prometheus endpoint, 0 serves no endpoint
+		Duration statusInterval = Duration.ofSeconds(10);
+		Path metricsPath = Paths.get("couchbase-sync-metrics.json");
+		int metricsPort = 9464;
+		Duration checkpointInterval = Duration.ofSeconds(30);
+		// Delta runs only sync documents changed since the last completed run
+		boolean delta = args.length > 0 && "delta".equals(args[0]);
+		Path marksPath = Paths.get("couchbase-sync-marks.json");
+		Duration clockSkew = Duration.ofMinutes(1);
+		// Condition matching the documents that mark a deletion at the source, null when the source keeps no
+		// tombstones, for example document_type = "tombstone"
+		String tombstoneCondition = null;
+		String tombstoneQuery = tombstoneCondition == null ? null
+				: "SELECT RAW guid FROM `BUCKET` WHERE " + tombstoneCondition + " AND META().cas > $since";
+		// Every run ends comparing the document counts of both buckets. Also compare the content after syncing, a
+		// read of the keys and content digests of each, or alone with the argument "verify"
+		boolean verifyAfterSync = false;
+		int maxReportedKeys = 100;
+		// Export the source to segment files and import them into the target later, for hosts that reach only one
+		Path segmentDirectory = Paths.get(args.length > 1 ? args[1] : "couchbase-sync-export");
+		if (args.length > 0 && "export".equals(args[0])) {
+			Cluster cluster1 = connectSource();
+			export(new CouchbaseSyncReader(cluster1, "BUCKET", "guid", pageSize, prefetch).exclude(tombstoneCondition),
+					CouchbaseSyncPartition.hexRanges(partitionCount), segmentDirectory);
+			cluster1.disconnect();
+			return;
+		} else if (args.length > 0 && "import".equals(args[0])) {
+			Cluster cluster0 = connectTarget();
+			Collection collection0 = cluster0.bucket("BUCKET").defaultCollection();
+			try (CouchbaseSyncDeadLetters deadLetters = new CouchbaseSyncDeadLetters(deadLetterPath)) {
+				importSegments(segmentDirectory, () -> new CouchbaseSyncWriter(collection0, "guid", maxInFlight,
+						targetLatency, "").deadLetters(deadLetters));
+			}
+			cluster0.disconnect();
+			return;
+		}
+		Cluster cluster0 = connectTarget();
+		Cluster cluster1 = connectSource();
+		Collection collection0 = cluster0.bucket("BUCKET").defaultCollection();
+		if (args.length > 0 && "verify".equals(args[0])) {
+			verify(cluster1, cluster0, CouchbaseSyncPartition.hexRanges(partitionCount), pageSize, prefetch,
+					maxReportedKeys, tombstoneCondition);
+			cluster0.disconnect();
+			cluster1.disconnect();
+			return;
+		} else if (args.length > 0 && "replay".equals(args[0])) {
+			replay(deadLetterPath, new CouchbaseSyncWriter(collection0, "guid", maxInFlight, targetLatency, ""));
+			checkCounts(cluster1, cluster0, tombstoneCondition);
+			cluster0.disconnect();
+			cluster1.disconnect();
+			return;
+		}
+		System.out.println("Start" + (delta ? " delta" : ""));
+		// One worker per guid range, each with its own reader and writer
+		List<CouchbaseSyncPartition> partitions = CouchbaseSyncPartition.hexRanges(partitionCount);
+		String layoutHash = CouchbaseSyncCheckpoint.hash("DEV", "LOCAL", "BUCKET", "guid", partitions);
+		CouchbaseSyncMarks marks = CouchbaseSyncMarks.load(marksPath, layoutHash);
+		long since = delta ? marks.getSince(partitions) : 0;
+		marks.startRun(cluster1, clockSkew);
+		// Tombstones are removed from the target rather than copied to it
+		String countQuery = "SELECT COUNT(*) as count FROM `BUCKET` WHERE document_type IS NOT MISSING"
+				+ " AND META().cas > $since"
+				+ (tombstoneCondition == null ? "" : " AND NOT (" + tombstoneCondition + ")");
+		System.out.println(countQuery);
+		int total = cluster1.query(countQuery, QueryOptions.queryOptions()
+				.parameters(JsonObject.create().put("since", since))).rowsAsObject().get(0).getInt("count");
+		System.out.println("Syncing " + total);
+		List<Long> partitionSince = new ArrayList<>();
+		for (CouchbaseSyncPartition partition : partitions) {
+			partitionSince.add(delta ? marks.getSince(partition) : 0);
+		}
+		String configHash = CouchbaseSyncCheckpoint.hash(layoutHash, partitionSince);
+		CouchbaseSyncCheckpoint checkpoint = CouchbaseSyncCheckpoint.load(checkpointPath, configHash);
+		checkpoint.start(checkpointInterval);
+		ExecutorService workers = Executors.newFixedThreadPool(partitions.size());
+		try (CouchbaseSyncMetrics metrics = new CouchbaseSyncMetrics();
+			 CouchbaseSyncDeadLetters deadLetters = new CouchbaseSyncDeadLetters(deadLetterPath);
+			 CouchbaseSyncProgress progress = new CouchbaseSyncProgress(total, partitions.size(), statusInterval,
+					 metrics, metricsPath)) {
+			metrics.serve(metricsPort);
+			List<Future<Long>> results = new ArrayList<>();
+			for (CouchbaseSyncPartition partition : partitions) {
+				if (checkpoint.isCompleted(partition)) {
+					System.out.println("Skipping completed partition " + partition);
+					continue;
+				}
+				String startKey = checkpoint.getLastKey(partition);
+				results.add(workers.submit(() -> {
+					CouchbaseSyncReader reader = new CouchbaseSyncReader(cluster1, "BUCKET", "guid", pageSize, prefetch)
+							.exclude(tombstoneCondition).metrics(metrics);
+					CouchbaseSyncWriter writer = new CouchbaseSyncWriter(collection0, "guid", maxInFlight, targetLatency,
+							startKey).skipUnchanged(skipUnchanged).deadLetters(deadLetters).metrics(metrics);
+					progress.register(partition, writer);
+					checkpoint.register(partition, writer);
+					long written = writer.write(reader.read(partition, startKey, partitionSince.get(partition.getIndex())))
+							.block();
+					progress.complete(partition);
+					checkpoint.complete(partition);
+					return written;
+				}));
+			}
+			for (Future<Long> result : results) {
+				result.get();
 			}
-			try {
-				Thread.sleep(pageSize);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			System.out.println("Written " + progress.getWritten() + " skipped unchanged " + progress.getSkipped());
+			if (tombstoneQuery != null) {
+				CouchbaseSyncReader reader = new CouchbaseSyncReader(cluster1, "BUCKET", "guid", pageSize, prefetch)
+						.metrics(metrics);
+				CouchbaseSyncWriter writer = new CouchbaseSyncWriter(collection0, "guid", maxInFlight, targetLatency, "")
+						.deadLetters(deadLetters).metrics(metrics);
+				System.out.println("Removed " + writer.remove(reader.readKeys(tombstoneQuery, since)).block());
 			}
+			if (deadLetters.getCount() > 0) {
+				System.out.println("Dead letters " + deadLetters.getCount() + " in " + deadLetterPath
+						+ ", run again with the argument replay");
+			}
+		} finally {
+			workers.shutdownNow();
+			checkpoint.close();
+		}
+		System.out.println("Total Count " + checkpoint.getWritten());
+		// Documents that failed are behind the mark of this run, their partitions keep the earlier mark
+		Set<String> failedKeys = new HashSet<>(CouchbaseSyncDeadLetters.readKeys(deadLetterPath));
+		failedKeys.addAll(CouchbaseSyncDeadLetters.readKeys(
+				deadLetterPath.resolveSibling(deadLetterPath.getFileName() + ".replay")));
+		List<CouchbaseSyncPartition> synced = new ArrayList<>();
+		for (CouchbaseSyncPartition partition : partitions) {
+			if (failedKeys.stream().anyMatch(partition::contains)) {
+				System.out.println("Keeping the mark of " + partition + " until its dead letters are synced");
+			} else {
+				synced.add(partition);
+			}
+		}
+		marks.finishRun(synced);
+		checkpoint.delete();
+		checkCounts(cluster1, cluster0, tombstoneCondition);
+		if (verifyAfterSync) {
+			verify(cluster1, cluster0, partitions, pageSize, prefetch, maxReportedKeys, tombstoneCondition);
 		}
-		System.out.println("Total Count " + totalCount);
-		String queryCheck = "SELECT COUNT(`BUCKET`) as count FROM `BUCKET` WHERE document_type IS NOT MISSING";
-		AtomicInteger e0Count = new AtomicInteger();
-		AtomicInteger e1Count = new AtomicInteger();
-		cluster0.query(queryCheck).rowsAsObject().forEach(jsonObject -> {
-			e0Count.set(jsonObject.getInt("count"));
-		});
-		cluster1.query(queryCheck).rowsAsObject().forEach(jsonObject -> {
-			e1Count.set(jsonObject.getInt("count"));
-		});
 		cluster0.disconnect();
 		cluster1.disconnect();
-		System.out.println("E0 Count = " + e0Count.get());
-		System.out.println("E1 Count = " + e1Count.get());
-		System.out.println("Counts equals = " + (e0Count.get() == e1Count.get()));
 		System.out.println("Complete");
 	}
+
+	/**
+	 * Compare the number of documents of both buckets, tombstones are not expected in the target
+	 */
+	private static void checkCounts(Cluster source, Cluster target, String tombstoneCondition) {
+		String countQuery = "SELECT COUNT(*) as count FROM `BUCKET` WHERE document_type IS NOT MISSING";
+		int sourceCount = source.query(countQuery
+				+ (tombstoneCondition == null ? "" : " AND NOT (" + tombstoneCondition + ")"))
+				.rowsAsObject().get(0).getInt("count");
+		int targetCount = target.query(countQuery).rowsAsObject().get(0).getInt("count");
+		System.out.println("E0 Count = " + targetCount);
+		System.out.println("E1 Count = " + sourceCount);
+		System.out.println("Counts equals = " + (targetCount == sourceCount));
+	}
+
+	/**
+	 * Compare every document of the source with the target in one read pass of each and print the differences
+	 */
+	private static void verify(Cluster source, Cluster target, List<CouchbaseSyncPartition> partitions, int pageSize,
+			int prefetch, int maxReportedKeys, String tombstoneCondition) throws InterruptedException, ExecutionException {
+		System.out.println("Verifying");
+		CouchbaseSyncVerifier verifier = new CouchbaseSyncVerifier(
+				new CouchbaseSyncReader(source, "BUCKET", "guid", pageSize, prefetch).exclude(tombstoneCondition),
+				new CouchbaseSyncReader(target, "BUCKET", "guid", pageSize, prefetch),
+				"guid", prefetch, maxReportedKeys);
+		JsonDatasetEqual.Report report = verifier.verify(partitions);
+		System.out.println("Verification " + report);
+		report.getMissingKeys().forEach(key -> System.out.println("Missing " + key));
+		report.getExtraKeys().forEach(key -> System.out.println("Extra " + key));
+		report.getDuplicateKeys().forEach(key -> System.out.println("Duplicate " + key));
+		report.getMismatchedKeys().forEach((key, differences) -> {
+			System.out.println("Differs " + key);
+			differences.forEach(difference -> System.out.println("  " + difference));
+		});
+		System.out.println("Content equal = " + report.isEqual());
+	}
+
+	private static Cluster connectSource() {
+		ClusterEnvironment env = ClusterEnvironment.builder()
+				.timeoutConfig(TimeoutConfig.kvTimeout(Duration.ofMinutes(10))).build();
+		return Cluster.connect("DEV", ClusterOptions.clusterOptions("USERNAME", "PASSWORD").environment(env));
+	}
+
+	private static Cluster connectTarget() {
+		return Cluster.connect("LOCAL", "USERNAME", "PASSWORD");
+	}
+
+	/**
+	 * Dump every partition of the source to its own segment files, one worker per partition
+	 */
+	private static void export(CouchbaseSyncReader reader, List<CouchbaseSyncPartition> partitions, Path directory)
+			throws InterruptedException, ExecutionException {
+		System.out.println("Exporting to " + directory);
+		ExecutorService workers = Executors.newFixedThreadPool(partitions.size());
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			for (CouchbaseSyncPartition partition : partitions) {
+				results.add(workers.submit(() -> {
+					try (CouchbaseSyncSegments.Writer segments = CouchbaseSyncSegments.writer(directory, partition)) {
+						for (JsonObject document : reader.read(partition, "").toIterable()) {
+							segments.add(document.getString("guid"), document.toBytes());
+						}
+						System.out.println("Exported partition " + partition + " " + segments.getCount());
+						return segments.getCount();
+					}
+				}));
+			}
+			long exported = 0;
+			for (Future<Long> result : results) {
+				exported += result.get();
+			}
+			System.out.println("Exported " + exported);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Upsert the segment files of every exported partition in parallel, one writer per partition
+	 */
+	private static void importSegments(Path directory, Supplier<CouchbaseSyncWriter> writers)
+			throws IOException, InterruptedException, ExecutionException {
+		Map<String, List<Path>> segments = CouchbaseSyncSegments.list(directory);
+		System.out.println("Importing " + segments.size() + " partitions from " + directory);
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, segments.size()));
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			segments.forEach((partition, files) -> results.add(workers.submit(() -> {
+				long written = writers.get().write(CouchbaseSyncSegments.read(files, "guid", "")).block();
+				System.out.println("Imported partition " + partition + " " + written);
+				return written;
+			})));
+			long imported = 0;
+			for (Future<Long> result : results) {
+				imported += result.get();
+			}
+			System.out.println("Imported " + imported);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Apply the dead letters of earlier runs, documents that fail again are appended to a new dead letter file
+	 */
+	private static void replay(Path deadLetterPath, CouchbaseSyncWriter writer) throws IOException {
+		Path replayPath = deadLetterPath.resolveSibling(deadLetterPath.getFileName() + ".replay");
+		// A replay file left by an interrupted replay is replayed again before newer dead letters
+		if (!Files.exists(replayPath)) {
+			if (!Files.exists(deadLetterPath) || Files.size(deadLetterPath) == 0) {
+				System.out.println("No dead letters in " + deadLetterPath);
+				return;
+			}
+			Files.move(deadLetterPath, replayPath);
+		}
+		System.out.println("Replaying " + replayPath);
+		try (CouchbaseSyncDeadLetters deadLetters = new CouchbaseSyncDeadLetters(deadLetterPath)) {
+			System.out.println("Replayed " + writer.deadLetters(deadLetters)
+					.replay(CouchbaseSyncDeadLetters.read(replayPath)).block());
+			System.out.println("Failed again " + deadLetters.getCount());
+		}
+		Files.delete(replayPath);
+	}
 }
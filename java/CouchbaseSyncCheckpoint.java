@@ -0,0 +1,180 @@
+import com.couchbase.client.java.json.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable progress of a sync run so a restart continues where the last run stopped.
+ * For every partition the file records the last key below which every document is
+ * written, the number written and whether the partition completed. The file is
+ * replaced atomically at a fixed interval and is only valid for the config it was
+ * written with.
+ */
+public class CouchbaseSyncCheckpoint implements AutoCloseable {
+
+	private static final String CONFIG_HASH = "config_hash";
+	private static final String UPDATED = "updated";
+	private static final String PARTITIONS = "partitions";
+	private static final String LAST_KEY = "last_key";
+	private static final String WRITTEN = "written";
+	private static final String COMPLETED = "completed";
+
+	private final Path path;
+	private final String configHash;
+	private final JsonObject partitions;
+	private final Map<Integer, CouchbaseSyncWriter> writers = new ConcurrentHashMap<>();
+	private final Map<Integer, Long> previouslyWritten = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	private CouchbaseSyncCheckpoint(Path path, String configHash, JsonObject partitions) {
+		this.path = path;
+		this.configHash = configHash;
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Load the checkpoint file if there is one, fails if it was written with a different config
+	 */
+	public static CouchbaseSyncCheckpoint load(Path path, String configHash) throws IOException {
+		if (!Files.exists(path)) {
+			return new CouchbaseSyncCheckpoint(path, configHash, JsonObject.create());
+		}
+		JsonObject checkpoint = JsonObject.fromJson(Files.readAllBytes(path));
+		if (!configHash.equals(checkpoint.getString(CONFIG_HASH))) {
+			throw new IllegalStateException("checkpoint " + path + " was written with a different config,"
+					+ " delete it to start over");
+		}
+		System.out.println("Resuming from checkpoint " + path + " updated " + checkpoint.getString(UPDATED));
+		return new CouchbaseSyncCheckpoint(path, configHash, checkpoint.getObject(PARTITIONS));
+	}
+
+	/**
+	 * Hash of the settings that decide which documents land in which partition
+	 */
+	public static String hash(Object... values) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Object value : values) {
+				digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Start saving at a fixed interval
+	 */
+	public void start(Duration interval) {
+		scheduler.scheduleAtFixedRate(() -> {
+			try {
+				save();
+			} catch (IOException e) {
+				System.out.println("Failed to save checkpoint " + e.getMessage());
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Key to resume the partition after, "" if the partition has not started
+	 */
+	public synchronized String getLastKey(CouchbaseSyncPartition partition) {
+		JsonObject state = partitions.getObject(String.valueOf(partition.getIndex()));
+		return state == null ? "" : state.getString(LAST_KEY);
+	}
+
+	public synchronized boolean isCompleted(CouchbaseSyncPartition partition) {
+		JsonObject state = partitions.getObject(String.valueOf(partition.getIndex()));
+		return state != null && Boolean.TRUE.equals(state.getBoolean(COMPLETED));
+	}
+
+	/**
+	 * Documents written by earlier runs and the writers registered in this run
+	 */
+	public synchronized long getWritten() {
+		update();
+		return partitions.getNames().stream()
+				.mapToLong(name -> partitions.getObject(name).getLong(WRITTEN))
+				.sum();
+	}
+
+	/**
+	 * Track the progress of the writer of a partition, counts continue from the checkpoint
+	 */
+	public synchronized void register(CouchbaseSyncPartition partition, CouchbaseSyncWriter writer) {
+		String name = String.valueOf(partition.getIndex());
+		JsonObject state = partitions.getObject(name);
+		if (state == null) {
+			state = JsonObject.create().put(LAST_KEY, "").put(WRITTEN, 0L).put(COMPLETED, false);
+			partitions.put(name, state);
+		}
+		// Remember what earlier runs wrote so the count keeps growing across restarts
+		previouslyWritten.put(partition.getIndex(), state.getLong(WRITTEN));
+		writers.put(partition.getIndex(), writer);
+	}
+
+	public synchronized void complete(CouchbaseSyncPartition partition) throws IOException {
+		update();
+		partitions.getObject(String.valueOf(partition.getIndex())).put(COMPLETED, true);
+		save();
+	}
+
+	/**
+	 * Write the checkpoint to a temporary file and move it over the previous one
+	 */
+	public synchronized void save() throws IOException {
+		update();
+		JsonObject checkpoint = JsonObject.create()
+				.put(CONFIG_HASH, configHash)
+				.put(UPDATED, Instant.now().toString())
+				.put(PARTITIONS, partitions);
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(temporary, checkpoint.toBytes());
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Remove the checkpoint once the whole sync completed
+	 */
+	public void delete() throws IOException {
+		scheduler.shutdownNow();
+		Files.deleteIfExists(path);
+	}
+
+	private void update() {
+		writers.forEach((index, writer) -> {
+			JsonObject state = partitions.getObject(String.valueOf(index));
+			state.put(LAST_KEY, writer.getCommittedKey());
+			state.put(WRITTEN, previouslyWritten.get(index) + writer.getWritten());
+		});
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		try {
+			save();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+import com.couchbase.client.java.json.JsonObject;
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * JSON lines file of the documents a sync gave up on after retrying. Each line holds the
+ * key, the document or null for a remove, the last error and when it failed, so a later
+ * run can replay the file against the target.
+ */
+public class CouchbaseSyncDeadLetters implements AutoCloseable {
+
+	public static final String KEY = "key";
+	public static final String DOCUMENT = "document";
+	public static final String ERROR = "error";
+	public static final String FAILED = "failed";
+
+	private final Path path;
+	private final BufferedWriter writer;
+	private long count;
+
+	/**
+	 * Append to the file, creating it if needed
+	 */
+	public CouchbaseSyncDeadLetters(Path path) throws IOException {
+		this.path = path;
+		this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Stream the entries of a dead letter file, lines that are cut off are skipped
+	 */
+	public static Flux<JsonObject> read(Path path) {
+		return Flux.using(() -> Files.lines(path, StandardCharsets.UTF_8), Flux::fromStream, lines -> lines.close())
+				.filter(line -> !line.isEmpty())
+				.flatMap(line -> {
+					try {
+						return Flux.just(JsonObject.fromJson(line));
+					} catch (RuntimeException e) {
+						System.out.println("Skipping dead letter " + line);
+						return Flux.empty();
+					}
+				});
+	}
+
+	/**
+	 * Keys of the entries of a dead letter file, empty when there is no file
+	 */
+	public static Set<String> readKeys(Path path) {
+		if (!Files.exists(path)) {
+			return Collections.emptySet();
+		}
+		return read(path)
+				.filter(entry -> entry.getString(KEY) != null)
+				.map(entry -> entry.getString(KEY))
+				.collect(Collectors.toSet())
+				.block();
+	}
+
+	/**
+	 * Append a document, null for a failed remove, and flush so it survives a crash
+	 */
+	public synchronized void add(String key, JsonObject document, Throwable error) throws IOException {
+		JsonObject entry = JsonObject.create()
+				.put(KEY, key)
+				.put(DOCUMENT, document)
+				.put(ERROR, String.valueOf(error))
+				.put(FAILED, Instant.now().toString());
+		writer.write(entry.toString());
+		writer.newLine();
+		writer.flush();
+		count++;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+}
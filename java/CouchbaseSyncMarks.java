@@ -0,0 +1,107 @@
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * High-water marks of the last successful sync per partition, in CAS units.
+ * A document whose CAS is above the mark of its partition changed after that sync
+ * started. The mark is taken from the clock of the source cluster when a run starts,
+ * minus a margin for clock skew between its nodes, and only becomes the mark of the
+ * partitions once the whole run completed, so an interrupted run never moves it forward
+ * and a resumed run keeps the mark of the run it continues. Partitions with documents left
+ * in the dead letter file keep their earlier mark, so the next delta run syncs them again.
+ */
+public class CouchbaseSyncMarks {
+
+	private static final String CONFIG_HASH = "config_hash";
+	private static final String UPDATED = "updated";
+	private static final String PARTITIONS = "partitions";
+	private static final String RUN_MARK = "run_mark";
+
+	private final Path path;
+	private final String configHash;
+	private final JsonObject partitions;
+	private Long runMark;
+
+	private CouchbaseSyncMarks(Path path, String configHash, JsonObject partitions, Long runMark) {
+		this.path = path;
+		this.configHash = configHash;
+		this.partitions = partitions;
+		this.runMark = runMark;
+	}
+
+	/**
+	 * Load the marks file, marks written with a different config are dropped so every partition syncs in full
+	 */
+	public static CouchbaseSyncMarks load(Path path, String configHash) throws IOException {
+		if (Files.exists(path)) {
+			JsonObject marks = JsonObject.fromJson(Files.readAllBytes(path));
+			if (configHash.equals(marks.getString(CONFIG_HASH))) {
+				return new CouchbaseSyncMarks(path, configHash, marks.getObject(PARTITIONS), marks.getLong(RUN_MARK));
+			}
+			System.out.println("Marks " + path + " were written with a different config, syncing in full");
+		}
+		return new CouchbaseSyncMarks(path, configHash, JsonObject.create(), null);
+	}
+
+	/**
+	 * Take the mark of this run from the clock of the source cluster, moved back by the skew margin.
+	 * An unfinished earlier run is continued with its own mark.
+	 */
+	public synchronized long startRun(Cluster cluster, Duration skew) throws IOException {
+		if (runMark == null) {
+			long millis = cluster.query("SELECT RAW NOW_MILLIS()").rowsAs(Long.class).get(0);
+			runMark = (millis - skew.toMillis()) * 1_000_000L;
+			save();
+		}
+		return runMark;
+	}
+
+	/**
+	 * The partitions synced everything up to the mark of the run, make it their mark and end the run.
+	 * Partitions left out keep their earlier mark.
+	 */
+	public synchronized void finishRun(List<CouchbaseSyncPartition> partitions) throws IOException {
+		for (CouchbaseSyncPartition partition : partitions) {
+			this.partitions.put(String.valueOf(partition.getIndex()), runMark);
+		}
+		runMark = null;
+		save();
+	}
+
+	/**
+	 * CAS the partition changed after since its last sync, 0 if it never completed
+	 */
+	public synchronized long getSince(CouchbaseSyncPartition partition) {
+		Long since = partitions.getLong(String.valueOf(partition.getIndex()));
+		return since == null ? 0 : since;
+	}
+
+	/**
+	 * Lowest mark over the partitions, documents above it include every change to sync
+	 */
+	public synchronized long getSince(List<CouchbaseSyncPartition> partitions) {
+		return partitions.stream().mapToLong(this::getSince).min().orElse(0);
+	}
+
+	/**
+	 * Write the marks to a temporary file and move it over the previous one
+	 */
+	public synchronized void save() throws IOException {
+		JsonObject marks = JsonObject.create()
+				.put(CONFIG_HASH, configHash)
+				.put(UPDATED, Instant.now().toString())
+				.put(PARTITIONS, partitions)
+				.put(RUN_MARK, runMark);
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(temporary, marks.toBytes());
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,252 @@
+import com.couchbase.client.java.json.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms shared by the readers and writers of a sync run.
+ * Recording is lock free, a snapshot moves the latencies recorded since the previous
+ * snapshot into the run totals and computes the rates over that interval. The totals
+ * can be served in the Prometheus text format on a local port.
+ */
+public class CouchbaseSyncMetrics implements AutoCloseable {
+
+	private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private final LongAdder read = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder keyless = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder removed = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder deadLetters = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Recorder queryRecorder = new Recorder(MAX_LATENCY_MICROS, 3);
+	private final Recorder writeRecorder = new Recorder(MAX_LATENCY_MICROS, 3);
+	private final Histogram queryLatency = new Histogram(MAX_LATENCY_MICROS, 3);
+	private final Histogram writeLatency = new Histogram(MAX_LATENCY_MICROS, 3);
+	private final long start = System.nanoTime();
+	private Histogram queryInterval;
+	private Histogram writeInterval;
+	private long lastTime = start;
+	private long lastRead;
+	private long lastWritten;
+	private HttpServer server;
+
+	/**
+	 * Query answered after the given time until its first rows arrived
+	 */
+	public void onQuery(long nanos) {
+		queries.increment();
+		queryRecorder.recordValue(Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+	}
+
+	public void onRead(int bytes) {
+		read.increment();
+		bytesRead.add(bytes);
+	}
+
+	/**
+	 * Row read without a string key, it can not be synced or used as a page cursor
+	 */
+	public void onKeyless() {
+		keyless.increment();
+	}
+
+	public void onStart() {
+		inFlight.incrementAndGet();
+	}
+
+	public void onEnd() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Write attempt, including the read of the target when skipping unchanged documents, succeeded after the given time
+	 */
+	public void onWrite(long nanos) {
+		writeRecorder.recordValue(Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+	}
+
+	public void onWritten() {
+		written.increment();
+	}
+
+	public void onSkipped() {
+		skipped.increment();
+	}
+
+	public void onRemoved() {
+		removed.increment();
+	}
+
+	public void onRetry() {
+		retries.increment();
+	}
+
+	public void onDeadLetter() {
+		deadLetters.increment();
+	}
+
+	/**
+	 * Totals of the run with the rates and latency percentiles since the previous snapshot
+	 */
+	public synchronized JsonObject snapshot() {
+		long now = System.nanoTime();
+		queryInterval = queryRecorder.getIntervalHistogram(queryInterval);
+		writeInterval = writeRecorder.getIntervalHistogram(writeInterval);
+		queryLatency.add(queryInterval);
+		writeLatency.add(writeInterval);
+		double seconds = Math.max(1, now - lastTime) / 1e9;
+		long read = this.read.sum();
+		long written = this.written.sum();
+		JsonObject snapshot = JsonObject.create()
+				.put("time", Instant.now().toString())
+				.put("elapsed_seconds", TimeUnit.NANOSECONDS.toSeconds(now - start))
+				.put("read", read)
+				.put("read_per_second", (read - lastRead) / seconds)
+				.put("bytes_read", bytesRead.sum())
+				.put("queries", queries.sum())
+				.put("keyless", keyless.sum())
+				.put("written", written)
+				.put("written_per_second", (written - lastWritten) / seconds)
+				.put("skipped", skipped.sum())
+				.put("removed", removed.sum())
+				.put("retries", retries.sum())
+				.put("dead_letters", deadLetters.sum())
+				.put("in_flight", inFlight.get())
+				.put("query_latency_ms", percentiles(queryInterval))
+				.put("write_latency_ms", percentiles(writeInterval));
+		lastTime = now;
+		lastRead = read;
+		lastWritten = written;
+		return snapshot;
+	}
+
+	/**
+	 * One line summary of a snapshot
+	 */
+	public static String status(JsonObject snapshot) {
+		JsonObject query = snapshot.getObject("query_latency_ms");
+		JsonObject write = snapshot.getObject("write_latency_ms");
+		return String.format("read %d (%.0f/s) written %d (%.0f/s) skipped %d retries %d dead %d in flight %d"
+						+ " query p50 %.0fms p99 %.0fms write p50 %.1fms p99 %.1fms %.1fMB",
+				snapshot.getLong("read"), snapshot.getDouble("read_per_second"),
+				snapshot.getLong("written"), snapshot.getDouble("written_per_second"),
+				snapshot.getLong("skipped"), snapshot.getLong("retries"), snapshot.getLong("dead_letters"),
+				snapshot.getInt("in_flight"),
+				query.getDouble("p50"), query.getDouble("p99"), write.getDouble("p50"), write.getDouble("p99"),
+				snapshot.getLong("bytes_read") / 1e6);
+	}
+
+	/**
+	 * Write a snapshot to a temporary file and move it over the previous one
+	 */
+	public static void save(JsonObject snapshot, Path path) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(temporary, snapshot.toBytes());
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Serve the run totals at http://localhost:port/metrics in the Prometheus text format, a port of 0 or less
+	 * serves nothing. A port that can not be bound is reported and the run goes on without the endpoint.
+	 */
+	public synchronized void serve(int port) {
+		if (port <= 0) {
+			return;
+		}
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		} catch (IOException e) {
+			System.out.println("Not serving metrics on port " + port + " " + e);
+			return;
+		}
+		server.createContext("/metrics", exchange -> {
+			byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+	}
+
+	/**
+	 * Counters of the run and the latency quantiles up to the last snapshot
+	 */
+	public synchronized String prometheus() {
+		StringBuilder text = new StringBuilder();
+		counter(text, "read_documents_total", "Documents read from the source", read.sum());
+		counter(text, "read_bytes_total", "Bytes of the documents read from the source", bytesRead.sum());
+		counter(text, "queries_total", "Page queries run on the source", queries.sum());
+		counter(text, "keyless_documents_total", "Rows read without a string key and skipped", keyless.sum());
+		counter(text, "written_documents_total", "Documents upserted to the target", written.sum());
+		counter(text, "skipped_documents_total", "Documents the target already held unchanged", skipped.sum());
+		counter(text, "removed_documents_total", "Documents removed from the target", removed.sum());
+		counter(text, "retries_total", "Write attempts repeated after a retryable failure", retries.sum());
+		counter(text, "dead_letters_total", "Documents that used up their retries", deadLetters.sum());
+		text.append("# HELP couchbase_sync_in_flight Write operations in flight\n")
+				.append("# TYPE couchbase_sync_in_flight gauge\n")
+				.append("couchbase_sync_in_flight ").append(inFlight.get()).append('\n');
+		summary(text, "query_latency_seconds", "Time until the first rows of a page query", queryLatency);
+		summary(text, "write_latency_seconds", "Time of a successful write attempt", writeLatency);
+		return text.toString();
+	}
+
+	private static void counter(StringBuilder text, String name, String help, long value) {
+		text.append("# HELP couchbase_sync_").append(name).append(' ').append(help).append('\n')
+				.append("# TYPE couchbase_sync_").append(name).append(" counter\n")
+				.append("couchbase_sync_").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder text, String name, String help, Histogram histogram) {
+		text.append("# HELP couchbase_sync_").append(name).append(' ').append(help).append('\n')
+				.append("# TYPE couchbase_sync_").append(name).append(" summary\n");
+		for (double percentile : PERCENTILES) {
+			text.append("couchbase_sync_").append(name).append("{quantile=\"")
+					.append(BigDecimal.valueOf(percentile).movePointLeft(2).stripTrailingZeros().toPlainString())
+					.append("\"} ")
+					.append(histogram.getValueAtPercentile(percentile) / 1e6).append('\n');
+		}
+		text.append("couchbase_sync_").append(name).append("_sum ")
+				.append(histogram.getMean() * histogram.getTotalCount() / 1e6).append('\n')
+				.append("couchbase_sync_").append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+	}
+
+	private static JsonObject percentiles(Histogram histogram) {
+		JsonObject percentiles = JsonObject.create();
+		for (double percentile : PERCENTILES) {
+			String name = "p" + (percentile == Math.rint(percentile)
+					? String.valueOf((long) percentile) : String.valueOf(percentile).replace(".", ""));
+			percentiles.put(name, histogram.getValueAtPercentile(percentile) / 1e3);
+		}
+		return percentiles.put("max", histogram.getMaxValue() / 1e3);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range of document keys synced by one worker, lower key inclusive and upper key exclusive.
+ * The first partition has an empty lower key and the last partition has no upper key.
+ */
+public class CouchbaseSyncPartition {
+
+	private static final int HEX_PREFIXES = 4096;
+
+	private final int index;
+	private final String lowerKey;
+	private final String upperKey;
+
+	public CouchbaseSyncPartition(int index, String lowerKey, String upperKey) {
+		this.index = index;
+		this.lowerKey = lowerKey;
+		this.upperKey = upperKey;
+	}
+
+	/**
+	 * Single partition covering every key
+	 */
+	public static CouchbaseSyncPartition all() {
+		return new CouchbaseSyncPartition(0, "", null);
+	}
+
+	/**
+	 * Split lower case hex keys such as guids into ranges of equal size by their first three characters
+	 */
+	public static List<CouchbaseSyncPartition> hexRanges(int count) {
+		int partitions = Math.max(1, Math.min(count, HEX_PREFIXES));
+		List<String> boundaries = new ArrayList<>();
+		for (int i = 1; i < partitions; i++) {
+			boundaries.add(String.format("%03x", i * HEX_PREFIXES / partitions));
+		}
+		return fromBoundaries(boundaries);
+	}
+
+	/**
+	 * Split the keyspace at the given sorted boundaries, n boundaries give n + 1 partitions
+	 */
+	public static List<CouchbaseSyncPartition> fromBoundaries(List<String> boundaries) {
+		List<CouchbaseSyncPartition> partitions = new ArrayList<>();
+		String lowerKey = "";
+		for (String boundary : boundaries) {
+			partitions.add(new CouchbaseSyncPartition(partitions.size(), lowerKey, boundary));
+			lowerKey = boundary;
+		}
+		partitions.add(new CouchbaseSyncPartition(partitions.size(), lowerKey, null));
+		return partitions;
+	}
+
+	/**
+	 * Whether the key falls in this range
+	 */
+	public boolean contains(String key) {
+		return key.compareTo(lowerKey) >= 0 && (upperKey == null || key.compareTo(upperKey) < 0);
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getLowerKey() {
+		return lowerKey;
+	}
+
+	public String getUpperKey() {
+		return upperKey;
+	}
+
+	@Override
+	public String toString() {
+		return "p" + index + "[\"" + lowerKey + "\"," + (upperKey == null ? "" : "\"" + upperKey + "\"") + ")";
+	}
+}
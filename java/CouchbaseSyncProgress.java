@@ -0,0 +1,81 @@
+import com.couchbase.client.java.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated progress of the partition workers, printed at a fixed interval as a status
+ * line and saved as a JSON snapshot of the metrics
+ */
+public class CouchbaseSyncProgress implements AutoCloseable {
+
+	private final long total;
+	private final int partitions;
+	private final Map<Integer, CouchbaseSyncWriter> writers = new ConcurrentSkipListMap<>();
+	private final Set<Integer> completed = ConcurrentHashMap.newKeySet();
+	private final CouchbaseSyncMetrics metrics;
+	private final Path snapshotPath;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * @param snapshotPath file the latest metrics snapshot is written to, null to only print
+	 */
+	public CouchbaseSyncProgress(long total, int partitions, Duration interval, CouchbaseSyncMetrics metrics,
+			Path snapshotPath) {
+		this.total = total;
+		this.partitions = partitions;
+		this.metrics = metrics;
+		this.snapshotPath = snapshotPath;
+		scheduler.scheduleAtFixedRate(this::print, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public void register(CouchbaseSyncPartition partition, CouchbaseSyncWriter writer) {
+		writers.put(partition.getIndex(), writer);
+	}
+
+	public void complete(CouchbaseSyncPartition partition) {
+		completed.add(partition.getIndex());
+		CouchbaseSyncWriter writer = writers.get(partition.getIndex());
+		System.out.println("Completed partition " + partition + " written " + writer.getWritten()
+				+ " skipped " + writer.getSkipped());
+	}
+
+	public long getWritten() {
+		return writers.values().stream().mapToLong(CouchbaseSyncWriter::getWritten).sum();
+	}
+
+	public long getSkipped() {
+		return writers.values().stream().mapToLong(CouchbaseSyncWriter::getSkipped).sum();
+	}
+
+	private synchronized void print() {
+		JsonObject snapshot = metrics.snapshot()
+				.put("total", total)
+				.put("partitions", partitions)
+				.put("completed_partitions", completed.size());
+		System.out.println(String.format("Synced %d/%d partitions %d/%d elapsed %ds %s",
+				getWritten() + getSkipped(), total, completed.size(), partitions,
+				snapshot.getLong("elapsed_seconds"), CouchbaseSyncMetrics.status(snapshot)));
+		if (snapshotPath != null) {
+			try {
+				CouchbaseSyncMetrics.save(snapshot, snapshotPath);
+			} catch (IOException e) {
+				System.out.println("Failed to save metrics " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		print();
+	}
+}
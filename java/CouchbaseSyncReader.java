@@ -0,0 +1,194 @@
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.query.QueryOptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.text.MessageFormat;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams the documents of a bucket in key order using keyset pagination.
+ * Every page starts after the last key of the previous page, so the query service
+ * seeks straight to it through the index instead of skipping all earlier rows.
+ * Needs an index on the key field, for example
+ * CREATE INDEX idx_sync_guid ON `BUCKET`(guid) WHERE document_type IS NOT MISSING
+ * and for delta reads one that also covers the CAS, for example
+ * CREATE INDEX idx_sync_cas ON `BUCKET`(guid, META().cas) WHERE document_type IS NOT MISSING
+ * Digests are computed by the query service with HASHBYTES, which needs Couchbase Server 7.6 or later.
+ */
+public class CouchbaseSyncReader {
+
+	static final String DIGEST_FIELD = "digest";
+
+	private static final String PAGE_QUERY = "SELECT {3} FROM `{0}` WHERE document_type IS NOT MISSING"
+			+ " AND {1} >= $lower AND {1} > $last{2} ORDER BY {1} LIMIT $limit";
+	private static final String DOCUMENT_QUERY = "SELECT `{0}`.* FROM `{0}` WHERE document_type IS NOT MISSING"
+			+ " AND {1} = $key";
+	private static final String CONTENT = "`{0}`.*";
+	private static final String DIGEST = "{1}, HASHBYTES(`{0}`, $options) AS " + DIGEST_FIELD;
+	private static final String UPPER_BOUND = " AND {0} < $upper";
+	private static final String CHANGED_SINCE = " AND META().cas > $since";
+	private static final String EXCLUDED = " AND NOT ({0})";
+
+	private final Cluster cluster;
+	private final String keyField;
+	private final int pageSize;
+	private final int prefetch;
+	private final String bucket;
+	private CouchbaseSyncMetrics metrics = new CouchbaseSyncMetrics();
+	private String excluded;
+
+	/**
+	 * @param cluster  source cluster
+	 * @param bucket   source bucket
+	 * @param keyField indexed, unique string field used as the document key
+	 * @param pageSize rows per query
+	 * @param prefetch rows requested ahead of the consumer, bounds the rows held in memory
+	 */
+	public CouchbaseSyncReader(Cluster cluster, String bucket, String keyField, int pageSize, int prefetch) {
+		this.cluster = cluster;
+		this.bucket = bucket;
+		this.keyField = keyField;
+		this.pageSize = pageSize;
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Record query latencies, documents and bytes read
+	 */
+	public CouchbaseSyncReader metrics(CouchbaseSyncMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Leave out the documents matching a N1QL condition, such as the tombstones removed separately
+	 */
+	public CouchbaseSyncReader exclude(String condition) {
+		this.excluded = condition;
+		return this;
+	}
+
+	/**
+	 * Stream every document with a key greater than afterKey, use "" to read from the start
+	 */
+	public Flux<JsonObject> read(String afterKey) {
+		return read(CouchbaseSyncPartition.all(), afterKey);
+	}
+
+	/**
+	 * Stream the documents of a partition with a key greater than afterKey
+	 */
+	public Flux<JsonObject> read(CouchbaseSyncPartition partition, String afterKey) {
+		return read(partition, afterKey, 0);
+	}
+
+	/**
+	 * Stream the documents of a partition with a key greater than afterKey that changed after the since CAS,
+	 * 0 reads every document
+	 */
+	public Flux<JsonObject> read(CouchbaseSyncPartition partition, String afterKey, long since) {
+		return readPages(partition, afterKey, since, CONTENT);
+	}
+
+	/**
+	 * Stream the key and a SHA-256 digest of the content of every document of a partition with a key greater
+	 * than afterKey, the digest is computed on the server so only the rows of a few bytes are transferred
+	 */
+	public Flux<JsonObject> readDigests(CouchbaseSyncPartition partition, String afterKey) {
+		return readPages(partition, afterKey, 0, DIGEST);
+	}
+
+	/**
+	 * Read the document holding a key, empty when there is none
+	 */
+	public Mono<JsonObject> readDocument(String key) {
+		String query = MessageFormat.format(DOCUMENT_QUERY, bucket, keyField)
+				+ (excluded == null ? "" : MessageFormat.format(EXCLUDED, excluded));
+		return cluster.reactive().query(query, QueryOptions.queryOptions()
+						.parameters(JsonObject.create().put("key", key)))
+				.flatMapMany(result -> result.rowsAs(byte[].class))
+				.next()
+				.map(row -> {
+					metrics.onRead(row.length);
+					return JsonObject.fromJson(row);
+				});
+	}
+
+	private Flux<JsonObject> readPages(CouchbaseSyncPartition partition, String afterKey, long since,
+			String projection) {
+		AtomicReference<String> lastKey = new AtomicReference<>(afterKey);
+		AtomicBoolean completed = new AtomicBoolean();
+		return Flux.defer(() -> {
+					AtomicInteger pageRows = new AtomicInteger();
+					String pageAfter = lastKey.get();
+					return queryPage(partition, pageAfter, since, projection)
+							.doOnNext(row -> pageRows.incrementAndGet())
+							// The cursor only moves on string keys, other rows are counted and skipped
+							.filter(row -> {
+								Object key = row.get(keyField);
+								if (key instanceof String) {
+									lastKey.set((String) key);
+									return true;
+								}
+								metrics.onKeyless();
+								return false;
+							})
+							// A full page without a key to continue after would be read again forever
+							.doOnComplete(() -> completed.set(pageRows.get() < pageSize
+									|| Objects.equals(pageAfter, lastKey.get())));
+				})
+				.repeat(() -> !completed.get())
+				.limitRate(prefetch);
+	}
+
+	/**
+	 * Stream the keys returned by a query taking the since CAS as $since, such as the keys of tombstones
+	 */
+	public Flux<String> readKeys(String query, long since) {
+		return cluster.reactive().query(query, QueryOptions.queryOptions()
+						.parameters(JsonObject.create().put("since", since)))
+				.flatMapMany(result -> result.rowsAs(String.class))
+				.limitRate(prefetch);
+	}
+
+	private Flux<JsonObject> queryPage(CouchbaseSyncPartition partition, String lastKey, long since,
+			String projection) {
+		JsonObject parameters = JsonObject.create()
+				.put("lower", partition.getLowerKey())
+				.put("last", lastKey)
+				.put("limit", pageSize);
+		StringBuilder conditions = new StringBuilder();
+		if (partition.getUpperKey() != null) {
+			parameters.put("upper", partition.getUpperKey());
+			conditions.append(MessageFormat.format(UPPER_BOUND, keyField));
+		}
+		if (since > 0) {
+			parameters.put("since", since);
+			conditions.append(CHANGED_SINCE);
+		}
+		if (excluded != null) {
+			conditions.append(MessageFormat.format(EXCLUDED, excluded));
+		}
+		if (projection.equals(DIGEST)) {
+			parameters.put("options", JsonObject.create().put("algorithm", "sha256"));
+		}
+		String query = MessageFormat.format(PAGE_QUERY, bucket, keyField, conditions,
+				MessageFormat.format(projection, bucket, keyField));
+		return Mono.defer(() -> {
+					long start = System.nanoTime();
+					return cluster.reactive().query(query, QueryOptions.queryOptions().parameters(parameters))
+							.doOnNext(result -> metrics.onQuery(System.nanoTime() - start));
+				})
+				// Rows are decoded here rather than by the SDK so the bytes transferred can be counted
+				.flatMapMany(result -> result.rowsAs(byte[].class))
+				.map(row -> {
+					metrics.onRead(row.length);
+					return JsonObject.fromJson(row);
+				});
+	}
+}
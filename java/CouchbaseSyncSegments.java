@@ -0,0 +1,227 @@
+import com.couchbase.client.java.json.JsonObject;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local segment files holding exported documents in key order.
+ * A segment is a sequence of LZ4 compressed blocks, each prefixed with its raw and compressed
+ * length and holding about a megabyte of documents as JSON lines. Next to every segment an
+ * index file lists the offset, document count and first and last key of each block, so a
+ * reader can seek past the blocks before a key. Segments roll over at a gigabyte so each can
+ * be mapped into memory in one piece.
+ */
+public class CouchbaseSyncSegments {
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int HEADER_BYTES = 8;
+	private static final int BLOCK_BYTES = 1 << 20;
+	private static final long SEGMENT_BYTES = 1L << 30;
+	private static final String OFFSET = "offset";
+	private static final String COUNT = "count";
+	private static final String FIRST_KEY = "first_key";
+	private static final String LAST_KEY = "last_key";
+
+	private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+	private CouchbaseSyncSegments() {
+	}
+
+	/**
+	 * Write the documents of a partition to segments named after its index, documents must come in key order
+	 */
+	public static Writer writer(Path directory, CouchbaseSyncPartition partition) throws IOException {
+		Files.createDirectories(directory);
+		return new Writer(directory, "p" + partition.getIndex());
+	}
+
+	/**
+	 * Segments in the directory grouped by the partition they were exported from, each group in key order
+	 */
+	public static Map<String, List<Path>> list(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files
+					.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+					.sorted()
+					.collect(Collectors.groupingBy(CouchbaseSyncSegments::partitionOf, TreeMap::new, Collectors.toList()));
+		}
+	}
+
+	/**
+	 * Stream the documents of segments with a key greater than afterKey, use "" to read everything
+	 */
+	public static Flux<JsonObject> read(List<Path> segments, String keyField, String afterKey) {
+		return Flux.fromIterable(segments).concatMap(segment -> read(segment, keyField, afterKey), 0);
+	}
+
+	/**
+	 * Stream the documents of a segment with a key greater than afterKey, blocks before the key are not read
+	 */
+	public static Flux<JsonObject> read(Path segment, String keyField, String afterKey) {
+		return Mono.fromCallable(() -> map(segment))
+				.flatMapMany(mapped -> Mono.fromCallable(() -> readIndex(indexOf(segment)))
+						.flatMapIterable(blocks -> blocks)
+						.filter(block -> block.getString(LAST_KEY).compareTo(afterKey) > 0)
+						.concatMapIterable(block -> decode(mapped, block.getLong(OFFSET)), 1)
+						.filter(document -> document.getString(keyField).compareTo(afterKey) > 0));
+	}
+
+	/**
+	 * Map a segment into memory, the mapping stays valid after the channel is closed
+	 */
+	private static MappedByteBuffer map(Path segment) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static List<JsonObject> decode(ByteBuffer mapped, long offset) {
+		int position = (int) offset;
+		int rawLength = mapped.getInt(position);
+		int compressedLength = mapped.getInt(position + 4);
+		byte[] raw = new byte[rawLength];
+		LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+		if (decompressor.decompress(mapped, position + HEADER_BYTES, ByteBuffer.wrap(raw), 0, rawLength)
+				!= compressedLength) {
+			throw new IllegalStateException("corrupt block at offset " + offset);
+		}
+		List<JsonObject> documents = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i < rawLength; i++) {
+			if (raw[i] == '\n') {
+				documents.add(JsonObject.fromJson(new String(raw, start, i - start, StandardCharsets.UTF_8)));
+				start = i + 1;
+			}
+		}
+		return documents;
+	}
+
+	private static List<JsonObject> readIndex(Path index) throws IOException {
+		try (Stream<String> lines = Files.lines(index, StandardCharsets.UTF_8)) {
+			return lines.filter(line -> !line.isEmpty()).map(JsonObject::fromJson).collect(Collectors.toList());
+		}
+	}
+
+	private static Path indexOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+	}
+
+	private static String partitionOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return name.substring(0, name.indexOf('-'));
+	}
+
+	/**
+	 * Appends documents to compressed blocks and rolls over to a new segment once it reaches its size
+	 */
+	public static final class Writer implements AutoCloseable {
+
+		private final Path directory;
+		private final String prefix;
+		private final LZ4Compressor compressor = LZ4.fastCompressor();
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + BLOCK_BYTES / 4);
+		private int segmentNumber;
+		private FileChannel segment;
+		private BufferedWriter index;
+		private long offset;
+		private int blockCount;
+		private String firstKey;
+		private String lastKey;
+		private long count;
+
+		private Writer(Path directory, String prefix) {
+			this.directory = directory;
+			this.prefix = prefix;
+		}
+
+		public void add(String key, byte[] document) throws IOException {
+			if (blockCount == 0) {
+				firstKey = key;
+			}
+			lastKey = key;
+			block.write(document);
+			block.write('\n');
+			blockCount++;
+			count++;
+			if (block.size() >= BLOCK_BYTES) {
+				flushBlock();
+			}
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		private void flushBlock() throws IOException {
+			if (blockCount == 0) {
+				return;
+			}
+			if (segment == null) {
+				String name = String.format("%s-%05d", prefix, segmentNumber++);
+				segment = FileChannel.open(directory.resolve(name + SEGMENT_SUFFIX), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				index = Files.newBufferedWriter(directory.resolve(name + INDEX_SUFFIX), StandardCharsets.UTF_8);
+				offset = 0;
+			}
+			byte[] raw = block.toByteArray();
+			byte[] compressed = compressor.compress(raw);
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + compressed.length)
+					.putInt(raw.length)
+					.putInt(compressed.length)
+					.put(compressed);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				segment.write(buffer);
+			}
+			index.write(JsonObject.create()
+					.put(OFFSET, offset)
+					.put(COUNT, blockCount)
+					.put(FIRST_KEY, firstKey)
+					.put(LAST_KEY, lastKey)
+					.toString());
+			index.newLine();
+			offset += HEADER_BYTES + compressed.length;
+			block.reset();
+			blockCount = 0;
+			if (offset >= SEGMENT_BYTES) {
+				closeSegment();
+			}
+		}
+
+		private void closeSegment() throws IOException {
+			if (segment != null) {
+				segment.close();
+				index.close();
+				segment = null;
+				index = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushBlock();
+			closeSegment();
+		}
+	}
+}
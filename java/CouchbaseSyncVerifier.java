@@ -0,0 +1,144 @@
+import com.couchbase.client.java.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the content of the source and target bucket in one read pass of each.
+ * Every partition is read from both sides as keys with a digest of the content computed by the
+ * query service, in key order, and merge joined, so keys only on one side are found without lookups
+ * and the documents themselves are not transferred. Only pairs whose digests differ are read in full
+ * and compared exactly, with array order, null values and number types, and diffed for the report.
+ * The loose option compares them with JsonEqual instead, for targets that may reorder arrays.
+ */
+public class CouchbaseSyncVerifier {
+
+	private final CouchbaseSyncReader source;
+	private final CouchbaseSyncReader target;
+	private final String keyField;
+	private final int prefetch;
+	private final int maxReportedKeys;
+	private boolean loose;
+
+	/**
+	 * @param source          reader of the source bucket
+	 * @param target          reader of the target bucket, with the same key field
+	 * @param keyField        field holding the document key
+	 * @param prefetch        rows read ahead of the merge from each side
+	 * @param maxReportedKeys upper bound of the keys listed per kind of difference
+	 */
+	public CouchbaseSyncVerifier(CouchbaseSyncReader source, CouchbaseSyncReader target, String keyField,
+			int prefetch, int maxReportedKeys) {
+		this.source = source;
+		this.target = target;
+		this.keyField = keyField;
+		this.prefetch = prefetch;
+		this.maxReportedKeys = maxReportedKeys;
+	}
+
+	/**
+	 * Compare with JsonEqual, where arrays match in any order and a null value matches a missing key
+	 */
+	public CouchbaseSyncVerifier loose(boolean loose) {
+		this.loose = loose;
+		return this;
+	}
+
+	/**
+	 * Verify every partition, one worker per partition
+	 */
+	public JsonDatasetEqual.Report verify(List<CouchbaseSyncPartition> partitions)
+			throws InterruptedException, ExecutionException {
+		JsonDatasetEqual.Report report = new JsonDatasetEqual.Report(maxReportedKeys);
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(partitions.size());
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (CouchbaseSyncPartition partition : partitions) {
+				results.add(workers.submit(() -> {
+					verify(partition, report);
+					System.out.println("Verified partition " + partition);
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+		report.setElapsedNanos(System.nanoTime() - start);
+		return report;
+	}
+
+	private void verify(CouchbaseSyncPartition partition, JsonDatasetEqual.Report report) {
+		// Both iterators subscribe right away, so the two sides are read concurrently
+		Iterator<JsonObject> expected = source.readDigests(partition, "").toIterable(prefetch).iterator();
+		Iterator<JsonObject> actual = target.readDigests(partition, "").toIterable(prefetch).iterator();
+		JsonObject left = expected.hasNext() ? expected.next() : null;
+		JsonObject right = actual.hasNext() ? actual.next() : null;
+		while (left != null || right != null) {
+			int order = left == null ? 1 : right == null ? -1
+					: left.getString(keyField).compareTo(right.getString(keyField));
+			if (order < 0) {
+				report.addMissing(left.getString(keyField));
+				left = next(expected, left, report);
+			} else if (order > 0) {
+				report.addExtra(right.getString(keyField));
+				right = next(actual, right, report);
+			} else {
+				String key = left.getString(keyField);
+				if (Objects.equals(left.getString(CouchbaseSyncReader.DIGEST_FIELD),
+						right.getString(CouchbaseSyncReader.DIGEST_FIELD))) {
+					report.addMatched();
+				} else {
+					compare(key, report);
+				}
+				left = next(expected, left, report);
+				right = next(actual, right, report);
+			}
+		}
+	}
+
+	/**
+	 * Next row of a side with a key other than the previous one, copies of the previous key are duplicates
+	 */
+	private JsonObject next(Iterator<JsonObject> rows, JsonObject previous, JsonDatasetEqual.Report report) {
+		String previousKey = previous.getString(keyField);
+		JsonObject row = rows.hasNext() ? rows.next() : null;
+		while (row != null && previousKey.equals(row.getString(keyField))) {
+			report.addDuplicate(previousKey);
+			row = rows.hasNext() ? rows.next() : null;
+		}
+		return row;
+	}
+
+	/**
+	 * Read both documents of a key whose digests differ and compare them, a document gone since the
+	 * digest was read counts as missing or extra
+	 */
+	private void compare(String key, JsonDatasetEqual.Report report) {
+		JsonObject left = source.readDocument(key).block();
+		JsonObject right = target.readDocument(key).block();
+		if (left == null || right == null) {
+			if (left != null) {
+				report.addMissing(key);
+			} else if (right != null) {
+				report.addExtra(key);
+			}
+		} else if (loose) {
+			report.comparePair(key, new io.vertx.core.json.JsonObject(left.toMap()),
+					new io.vertx.core.json.JsonObject(right.toMap()));
+		} else if (left.equals(right)) {
+			report.addMatched();
+		} else {
+			report.addMismatched(key, new io.vertx.core.json.JsonObject(left.toMap()),
+					new io.vertx.core.json.JsonObject(right.toMap()));
+		}
+	}
+}
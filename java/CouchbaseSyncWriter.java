@@ -0,0 +1,502 @@
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.core.error.RateLimitedException;
+import com.couchbase.client.core.error.TemporaryFailureException;
+import com.couchbase.client.core.error.TimeoutException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.ReactiveCollection;
+import com.couchbase.client.java.json.JsonObject;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Upserts a stream of documents through the reactive collection API.
+ * At most maxInFlight upserts are requested from the reader at a time, so a slow
+ * target applies backpressure all the way to the source query. Within that bound an
+ * adaptive limit grows while upserts are fast and backs off on slow upserts and timeouts.
+ * When skipping unchanged documents the target copies are fetched a batch at a time and a
+ * document is only upserted if its content differs exactly, which saves the write, replication
+ * and indexing at the cost of a read, so it only pays off when most documents are unchanged.
+ * Timeouts, temporary failures and rate limiting are retried with exponential backoff and
+ * jitter, without holding a permit while waiting. Documents that use up their retries go
+ * to the dead letter file when there is one, otherwise they fail the write.
+ */
+public class CouchbaseSyncWriter {
+
+	private static final int MAX_RETRIES = 5;
+	private static final Duration MIN_BACKOFF = Duration.ofMillis(100);
+	private static final Duration MAX_BACKOFF = Duration.ofSeconds(10);
+	private static final double JITTER = 0.5;
+
+	private final ReactiveCollection collection;
+	private final String keyField;
+	private final int maxInFlight;
+	private final AdaptiveLimit limit;
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong removed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final Watermark watermark;
+	private boolean skipUnchanged;
+	private Retry retry = backoff(MAX_RETRIES, MIN_BACKOFF, MAX_BACKOFF);
+	private CouchbaseSyncDeadLetters deadLetters;
+	private CouchbaseSyncMetrics metrics = new CouchbaseSyncMetrics();
+
+	/**
+	 * @param collection    target collection
+	 * @param keyField      field holding the document key, documents without it are skipped
+	 * @param maxInFlight   upper bound of concurrent upserts
+	 * @param targetLatency upsert latency above which the limit is reduced
+	 * @param startKey      key the documents are read after, committed before anything is written
+	 */
+	public CouchbaseSyncWriter(Collection collection, String keyField, int maxInFlight, Duration targetLatency,
+			String startKey) {
+		this.collection = collection.reactive();
+		this.keyField = keyField;
+		this.maxInFlight = maxInFlight;
+		this.limit = new AdaptiveLimit(maxInFlight, targetLatency.toNanos());
+		this.watermark = new Watermark(startKey);
+	}
+
+	/**
+	 * Compare every document with the target and only upsert the ones that differ
+	 */
+	public CouchbaseSyncWriter skipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+		return this;
+	}
+
+	/**
+	 * Retry budget of each document and the range its backoff grows in
+	 */
+	public CouchbaseSyncWriter retry(int maxRetries, Duration minBackoff, Duration maxBackoff) {
+		this.retry = backoff(maxRetries, minBackoff, maxBackoff);
+		return this;
+	}
+
+	/**
+	 * Record documents that use up their retries instead of failing the write
+	 */
+	public CouchbaseSyncWriter deadLetters(CouchbaseSyncDeadLetters deadLetters) {
+		this.deadLetters = deadLetters;
+		return this;
+	}
+
+	/**
+	 * Record write latencies, in flight operations and outcomes
+	 */
+	public CouchbaseSyncWriter metrics(CouchbaseSyncMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Upsert every document, completes with the number written once the stream is drained
+	 */
+	public Mono<Long> write(Flux<JsonObject> documents) {
+		Flux<JsonObject> keyed = documents.filter(document -> document.getString(keyField) != null);
+		Flux<Compared> compared = skipUnchanged
+				// The gets of a batch are all sent at once and pipelined, one batch is fetched ahead of the upserts
+				? keyed.buffer(maxInFlight).flatMapSequential(this::compare, 2)
+				: keyed.map(document -> new Compared(document, true));
+		return compared
+				.flatMap(entry -> upsert(entry.document, entry.changed), maxInFlight)
+				.then(Mono.fromCallable(written::get));
+	}
+
+	/**
+	 * Remove every key from the target, keys that are already gone count as removed
+	 */
+	public Mono<Long> remove(Flux<String> keys) {
+		return keys
+				.flatMap(this::remove, maxInFlight)
+				.then(Mono.fromCallable(removed::get));
+	}
+
+	/**
+	 * Apply the entries of a dead letter file, completes with the number written and removed
+	 */
+	public Mono<Long> replay(Flux<JsonObject> entries) {
+		return entries
+				.flatMap(entry -> {
+					JsonObject document = entry.getObject(CouchbaseSyncDeadLetters.DOCUMENT);
+					return document == null ? remove(entry.getString(CouchbaseSyncDeadLetters.KEY))
+							: upsert(document, true);
+				}, maxInFlight)
+				.then(Mono.fromCallable(() -> written.get() + removed.get()));
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getRemoved() {
+		return removed.get();
+	}
+
+	/**
+	 * Documents not upserted because the target already held the same content
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Attempts repeated after a retryable failure
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Key up to which every document read has been written, in read order
+	 */
+	public String getCommittedKey() {
+		return watermark.getCommitted();
+	}
+
+	private Mono<Void> upsert(JsonObject document, boolean changed) {
+		String key = document.getString(keyField);
+		// flatMap maps in read order, so sequence numbers follow the key order of the reader
+		long sequence = watermark.begin(key);
+		if (!changed) {
+			skipped.incrementAndGet();
+			metrics.onSkipped();
+			watermark.complete(sequence);
+			return Mono.empty();
+		}
+		return withRetry(() -> collection.upsert(key, document).doOnSuccess(result -> {
+					written.incrementAndGet();
+					metrics.onWritten();
+				}).then())
+				.onErrorResume(e -> deadLetter(key, document, e))
+				.then(Mono.fromRunnable(() -> watermark.complete(sequence)));
+	}
+
+	private Mono<Void> remove(String key) {
+		return withRetry(() -> collection.remove(key)
+				.then()
+				.onErrorResume(DocumentNotFoundException.class, e -> Mono.empty())
+				.doOnSuccess(result -> {
+					removed.incrementAndGet();
+					metrics.onRemoved();
+				}))
+				.onErrorResume(e -> deadLetter(key, null, e));
+	}
+
+	/**
+	 * Run an operation under a permit of the limit, backing off between attempts without holding the permit
+	 */
+	private Mono<Void> withRetry(Supplier<Mono<Void>> operation) {
+		return Mono.usingWhen(limit.acquire(), permit -> {
+			long start = System.nanoTime();
+			metrics.onStart();
+			return operation.get()
+					.doOnSuccess(result -> {
+						long latency = System.nanoTime() - start;
+						limit.onSuccess(latency);
+						metrics.onWrite(latency);
+					})
+					.doOnError(e -> limit.onFailure(isRetryable(e)))
+					.doFinally(signal -> metrics.onEnd());
+		}, AdaptiveLimit.Permit::release).retryWhen(retry);
+	}
+
+	private Mono<Void> deadLetter(String key, JsonObject document, Throwable error) {
+		if (deadLetters == null) {
+			return Mono.error(error);
+		}
+		Throwable cause = error.getCause() != null && Exceptions.isRetryExhausted(error)
+				? error.getCause() : error;
+		System.out.println("Dead letter " + key + " " + cause);
+		metrics.onDeadLetter();
+		return Mono.fromRunnable(() -> {
+			try {
+				deadLetters.add(key, document, cause);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private Retry backoff(int maxRetries, Duration minBackoff, Duration maxBackoff) {
+		return Retry.backoff(maxRetries, minBackoff)
+				.maxBackoff(maxBackoff)
+				.jitter(JITTER)
+				.filter(CouchbaseSyncWriter::isRetryable)
+				.doBeforeRetry(signal -> {
+					retries.incrementAndGet();
+					metrics.onRetry();
+				});
+	}
+
+	private static boolean isRetryable(Throwable error) {
+		return error instanceof TimeoutException
+				|| error instanceof TemporaryFailureException
+				|| error instanceof RateLimitedException;
+	}
+
+	/**
+	 * Fetch the target copies of a batch and pair every document with whether it changed, in batch order
+	 */
+	private Flux<Compared> compare(List<JsonObject> batch) {
+		return Flux.fromIterable(batch)
+				.flatMapSequential(document -> isChanged(document.getString(keyField), document)
+						.map(changed -> new Compared(document, changed)), batch.size());
+	}
+
+	/**
+	 * Missing documents and documents whose content is not exactly the target content, with array order
+	 * and null values, are changed. A target copy that can not be read counts as changed as well.
+	 */
+	private Mono<Boolean> isChanged(String key, JsonObject document) {
+		return collection.get(key)
+				.map(result -> !document.equals(result.contentAsObject()))
+				.retryWhen(retry)
+				.onErrorResume(e -> Mono.just(true));
+	}
+
+	private static final class Compared {
+
+		private final JsonObject document;
+		private final boolean changed;
+
+		private Compared(JsonObject document, boolean changed) {
+			this.document = document;
+			this.changed = changed;
+		}
+	}
+
+	/**
+	 * Tracks upserts that complete out of order and advances the committed key
+	 * only past documents whose predecessors have all been written
+	 */
+	static final class Watermark {
+
+		private final TreeMap<Long, String> pending = new TreeMap<>();
+		private final Set<Long> done = new HashSet<>();
+		private long nextSequence;
+		private String committed;
+
+		Watermark(String committed) {
+			this.committed = committed;
+		}
+
+		synchronized long begin(String key) {
+			pending.put(nextSequence, key);
+			return nextSequence++;
+		}
+
+		synchronized void complete(long sequence) {
+			done.add(sequence);
+			while (!pending.isEmpty() && done.remove(pending.firstKey())) {
+				committed = pending.pollFirstEntry().getValue();
+			}
+		}
+
+		synchronized String getCommitted() {
+			return committed;
+		}
+	}
+
+	/**
+	 * Non blocking concurrency limit adjusted by additive increase and multiplicative decrease.
+	 * Every full window of fast upserts raises the limit by one, a retryable failure halves it
+	 * and a slow upsert lowers it by a tenth, with at most one decrease per backoff interval.
+	 * It also acts as a circuit breaker, when too many operations of an error window fail the
+	 * limit drops to one and stays there until the breaker closes again.
+	 */
+	static final class AdaptiveLimit {
+
+		private static final long BACKOFF_INTERVAL_NANOS = Duration.ofSeconds(1).toNanos();
+		private static final int ERROR_WINDOW = 100;
+		private static final double MAX_ERROR_RATE = 0.2;
+		private static final long OPEN_NANOS = Duration.ofSeconds(10).toNanos();
+
+		private final int maxLimit;
+		private final long targetLatencyNanos;
+		private final Deque<Waiter> waiters = new ArrayDeque<>();
+		private final AtomicInteger fastInWindow = new AtomicInteger();
+		private int limit;
+		private int inFlight;
+		private long lastDecrease;
+		private int windowOperations;
+		private int windowErrors;
+		private long openUntil;
+
+		AdaptiveLimit(int maxLimit, long targetLatencyNanos) {
+			this.maxLimit = maxLimit;
+			this.targetLatencyNanos = targetLatencyNanos;
+			this.limit = maxLimit;
+		}
+
+		Mono<Permit> acquire() {
+			return Mono.create(sink -> {
+				Waiter waiter = new Waiter(sink);
+				boolean granted;
+				synchronized (this) {
+					granted = inFlight < limit;
+					if (granted) {
+						inFlight++;
+					} else {
+						waiters.add(waiter);
+					}
+				}
+				if (granted) {
+					waiter.grant();
+				} else {
+					sink.onCancel(() -> cancel(waiter));
+				}
+			});
+		}
+
+		synchronized int getLimit() {
+			return limit;
+		}
+
+		void onSuccess(long latencyNanos) {
+			record(false);
+			if (latencyNanos > targetLatencyNanos) {
+				decrease(0.9);
+			} else if (fastInWindow.incrementAndGet() >= getLimit()) {
+				fastInWindow.set(0);
+				synchronized (this) {
+					if (isOpen()) {
+						return;
+					}
+					limit = Math.min(maxLimit, limit + 1);
+				}
+				grantWaiters();
+			}
+		}
+
+		void onFailure(boolean retryable) {
+			record(true);
+			if (retryable) {
+				decrease(0.5);
+			}
+		}
+
+		synchronized boolean isOpen() {
+			return System.nanoTime() - openUntil < 0;
+		}
+
+		private synchronized void record(boolean error) {
+			windowOperations++;
+			if (error) {
+				windowErrors++;
+			}
+			if (windowOperations < ERROR_WINDOW) {
+				return;
+			}
+			if (windowErrors > ERROR_WINDOW * MAX_ERROR_RATE) {
+				System.out.println("Circuit open, " + windowErrors + " of " + windowOperations + " failed");
+				openUntil = System.nanoTime() + OPEN_NANOS;
+				limit = 1;
+			}
+			windowOperations = 0;
+			windowErrors = 0;
+		}
+
+		private void decrease(double factor) {
+			synchronized (this) {
+				long now = System.nanoTime();
+				if (now - lastDecrease < BACKOFF_INTERVAL_NANOS) {
+					return;
+				}
+				lastDecrease = now;
+				limit = Math.max(1, (int) (limit * factor));
+			}
+			fastInWindow.set(0);
+		}
+
+		private void release() {
+			synchronized (this) {
+				inFlight--;
+			}
+			grantWaiters();
+		}
+
+		private void cancel(Waiter waiter) {
+			if (waiter.state.compareAndSet(Waiter.WAITING, Waiter.CANCELLED)) {
+				synchronized (this) {
+					waiters.remove(waiter);
+				}
+			} else {
+				// Granted while the subscriber was cancelling, hand the permit back
+				waiter.permit.releaseNow();
+			}
+		}
+
+		private void grantWaiters() {
+			while (true) {
+				Waiter waiter;
+				synchronized (this) {
+					if (inFlight >= limit || waiters.isEmpty()) {
+						return;
+					}
+					waiter = waiters.poll();
+					inFlight++;
+				}
+				waiter.grant();
+			}
+		}
+
+		private final class Waiter {
+
+			private static final int WAITING = 0;
+			private static final int GRANTED = 1;
+			private static final int CANCELLED = 2;
+
+			private final MonoSink<Permit> sink;
+			private final AtomicInteger state = new AtomicInteger(WAITING);
+			private final Permit permit = new Permit();
+
+			private Waiter(MonoSink<Permit> sink) {
+				this.sink = sink;
+			}
+
+			private void grant() {
+				if (state.compareAndSet(WAITING, GRANTED)) {
+					sink.success(permit);
+				} else {
+					permit.releaseNow();
+				}
+			}
+		}
+
+		final class Permit {
+
+			private boolean released;
+
+			Mono<Void> release() {
+				return Mono.fromRunnable(this::releaseNow);
+			}
+
+			private void releaseNow() {
+				synchronized (this) {
+					if (released) {
+						return;
+					}
+					released = true;
+				}
+				AdaptiveLimit.this.release();
+			}
+		}
+	}
+}
@@ -2,14 +2,34 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.ExcelNumberFormat;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.ObjIntConsumer;
 
 @Slf4j
 public class ExcelToJson {
@@ -17,150 +37,422 @@ public class ExcelToJson {
     private static final String ARRAY_MARKER = "[]";
     private static final String ITEM = "<item>";
     private static final String PLACEHOLDER = "<placeholder>";
+    // value of a cell that is set but has nothing to read, like a formula or an error
+    private static final Object NO_VALUE = new Object();
 
     private ExcelToJson() {
     }
 
     /**
-     * Convert Excel sheet with data to Json
+     * Convert Excel sheet with data to Json, see {@link #excelToJson(Path, String)}
      */
     public static JsonObject excelToJson(byte[] uploadData, String traceId) throws IOException {
-        InputStream inputStream = new ByteArrayInputStream(uploadData);
-        Workbook workbook = new XSSFWorkbook(inputStream);
-        JsonObject data = new JsonObject();
-        Iterator<Sheet> sheetIterator = workbook.sheetIterator();
-        // Burn meta sheet
-        sheetIterator.next();
-        // Loop through sheets
-        sheetIterator.forEachRemaining(sheet -> {
-            JsonArray sheetArray = new JsonArray();
-            data.put(sheet.getSheetName(), sheetArray);
-            Iterator<Row> rowIterator = sheet.rowIterator();
-            Row headers = rowIterator.next();
-            // Set placeholder values
-            addPlaceholders(sheet);
-            // Loop through rows
-            Stack<JsonObject> stack = new Stack<>();
-            rowIterator.forEachRemaining(row -> {
-                if (!isBlank(row.getCell(0))) {
-                    // Row represents a new object
-                    JsonObject rowObject = new JsonObject();
-                    sheetArray.add(rowObject);
-                    stack.clear();
-                    stack.push(new JsonObject()
-                            .put(FieldNameConstants.KEY, "")
-                            .put(FieldNameConstants.VALUE, rowObject)
-                    );
+        return excelToJson(new ByteArrayInputStream(uploadData), traceId);
+    }
+
+    /**
+     * Convert Excel sheet with data to Json, see {@link #excelToJson(Path, String)}
+     * The upload is copied to a temporary file, so the parts of the workbook are read from the zip file one at
+     * a time instead of being unpacked in memory.
+     */
+    public static JsonObject excelToJson(InputStream uploadData, String traceId) throws IOException {
+        Path uploadFile = Files.createTempFile("excel-to-json-", ".xlsx");
+        try {
+            Files.copy(uploadData, uploadFile, StandardCopyOption.REPLACE_EXISTING);
+            return excelToJson(uploadFile, traceId);
+        } finally {
+            Files.deleteIfExists(uploadFile);
+        }
+    }
+
+    /**
+     * Convert Excel sheet with data to Json
+     * The sheets are read with SAX and their rows are turned into objects as they are read, so only the shared
+     * strings and the objects built so far are held in memory instead of the whole workbook.
+     */
+    public static JsonObject excelToJson(Path uploadFile, String traceId) throws IOException {
+        OPCPackage workbook;
+        try {
+            workbook = OPCPackage.open(uploadFile.toFile(), PackageAccess.READ);
+        } catch (InvalidFormatException e) {
+            throw new IOException(e);
+        }
+        try {
+            XSSFReader reader = new XSSFReader(workbook);
+            SharedStrings sharedStrings = new ReadOnlySharedStringsTable(workbook, false);
+            StylesTable styles = reader.getStylesTable();
+            boolean date1904 = isDate1904(reader);
+            JsonObject data = new JsonObject();
+            XSSFReader.SheetIterator sheetIterator = (XSSFReader.SheetIterator) reader.getSheetsData();
+            // Keep the rows of the meta sheet holding the request data
+            Object[][] meta = new Object[2][];
+            try (InputStream sheet = sheetIterator.next()) {
+                readSheet(sheet, new SheetHandler(sharedStrings, styles, date1904, (row, rowNum) -> {
+                    if (rowNum < meta.length) {
+                        meta[rowNum] = row;
+                    }
+                }));
+            }
+            // Loop through sheets
+            String firstSheetName = null;
+            while (sheetIterator.hasNext()) {
+                try (InputStream sheet = sheetIterator.next()) {
+                    String sheetName = sheetIterator.getSheetName();
+                    if (firstSheetName == null) {
+                        firstSheetName = sheetName;
+                    }
+                    JsonArray sheetArray = new JsonArray();
+                    data.put(sheetName, sheetArray);
+                    SheetBuilder builder = new SheetBuilder(sheetArray, traceId);
+                    readSheet(sheet, new SheetHandler(sharedStrings, styles, date1904, builder::addRow));
                 }
-                // Loop though columns
-                for (int column = 0; column < headers.getLastCellNum(); column++) {
-                    try {
-                        Cell cell = row.getCell(column);
-                        // Get header value for this column
-                        Cell headerCell = headers.getCell(column);
-                        if (isBlank(cell) || isBlank(headerCell)) {
-                            continue;
-                        }
-                        String key = headerCell.getStringCellValue()
-                                .replace(String.format("%s.", ARRAY_MARKER),
-                                        String.format("%s.%s.", ARRAY_MARKER, ITEM));
-                        String[] keyArray = key.split("\\.");
-                        String targetParentKey;
-                        if (key.endsWith(ARRAY_MARKER)) {
-                            targetParentKey = key;
-                        } else {
-                            targetParentKey = removeLastKeyField(key);
-                        }
-                        log.debug("cell_value={} target_key={}", getCellValue(cell), targetParentKey);
-                        JsonObject parent = stack.peek();
-                        String parentKey = parent.getString(FieldNameConstants.KEY);
-                        if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
-                                && valueIsAlreadyPopulated(parent.getJsonObject(FieldNameConstants.VALUE), getRemainingKey(key, parentKey))) {
-                            parent = resetToPreviousArray(stack);
-                            parentKey = parent.getString(FieldNameConstants.KEY);
-                        }
-                        // Add objects on top of stack until the target parent key is reached
-                        while (!targetParentKey.equals(parentKey)) {
-                            log.debug("current parent={}", parent);
-                            if (isChildKey(parentKey, targetParentKey)) {
-                                // Create new object on top of stack
-                                String remainingKey = getRemainingKey(key, parentKey);
-                                String newKey = remainingKey.split("\\.")[0];
-                                Object newValue;
-                                if (newKey.endsWith(ARRAY_MARKER)) {
-                                    String arrayKey = newKey.replace(ARRAY_MARKER, "");
-                                    if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
-                                            && parent.getJsonObject(FieldNameConstants.VALUE).getValue(arrayKey) instanceof JsonArray) {
-                                        newValue = parent.getJsonObject(FieldNameConstants.VALUE).getValue(arrayKey);
-                                    } else {
-                                        newValue = new JsonArray();
-                                    }
-                                } else if (parentKey.endsWith(ARRAY_MARKER)
-                                        && parent.getValue(FieldNameConstants.VALUE) instanceof JsonArray
-                                        && !parent.getJsonArray(FieldNameConstants.VALUE).isEmpty()) {
-                                    JsonArray parentArray = parent.getJsonArray(FieldNameConstants.VALUE);
-                                    newValue = parentArray.getJsonObject(parentArray.size() - 1);
-                                } else if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
-                                        && parent.getJsonObject(FieldNameConstants.VALUE).getValue(newKey) != null) {
-                                    newValue = parent.getJsonObject(FieldNameConstants.VALUE).getValue(newKey);
+            }
+            // Remove all placeholder and empty values
+            JsonObject processedData = CommonUtil.removeNullOrEmpty(data, PLACEHOLDER);
+            // Combine child object with parents
+            combineObjects(processedData);
+            // Get first sheet list
+            processedData = new JsonObject().put("data", processedData.getJsonArray(firstSheetName));
+            // Add meta data
+            addRequestData(processedData, meta[0], meta[1]);
+            return processedData;
+        } catch (OpenXML4JException | SAXException e) {
+            throw new IOException(e);
+        } finally {
+            // Close files, a package opened to read is closed without saving it
+            workbook.revert();
+        }
+    }
+
+    private static void readSheet(InputStream sheet, SheetHandler handler) throws IOException, SAXException {
+        try {
+            XMLReader xmlReader = XMLHelper.newXMLReader();
+            xmlReader.setContentHandler(handler);
+            xmlReader.parse(new InputSource(sheet));
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Return true if the serial numbers of dates count from 1904 instead of 1900
+     */
+    private static boolean isDate1904(XSSFReader reader) throws IOException, OpenXML4JException, SAXException {
+        boolean[] date1904 = new boolean[1];
+        try (InputStream workbook = reader.getWorkbookData()) {
+            XMLReader xmlReader = XMLHelper.newXMLReader();
+            xmlReader.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if ("workbookPr".equals(localName)) {
+                        String value = attributes.getValue("date1904");
+                        date1904[0] = "1".equals(value) || "true".equals(value);
+                    }
+                }
+            });
+            xmlReader.parse(new InputSource(workbook));
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+        return date1904[0];
+    }
+
+    /**
+     * Builds the objects of a sheet from its rows as they are read. The first row holds the headers, a row with
+     * a value in the first column starts a new object and the rows after it add to that object.
+     */
+    private static final class SheetBuilder {
+
+        private final JsonArray sheetArray;
+        private final String traceId;
+        private final Stack<JsonObject> stack = new Stack<>();
+        private String[] headers;
+
+        private SheetBuilder(JsonArray sheetArray, String traceId) {
+            this.sheetArray = sheetArray;
+            this.traceId = traceId;
+        }
+
+        void addRow(Object[] cells, int rowNum) {
+            if (headers == null) {
+                headers = new String[cells.length];
+                for (int column = 0; column < cells.length; column++) {
+                    headers[column] = cells[column] instanceof String ? (String) cells[column] : "";
+                }
+                return;
+            }
+            Object[] row = Arrays.copyOf(cells, headers.length);
+            // Set placeholder values
+            addPlaceholders(headers, row, rowNum);
+            if (row.length > 0 && !isBlank(row[0])) {
+                // Row represents a new object
+                JsonObject rowObject = new JsonObject();
+                sheetArray.add(rowObject);
+                stack.clear();
+                stack.push(new JsonObject()
+                        .put(FieldNameConstants.KEY, "")
+                        .put(FieldNameConstants.VALUE, rowObject)
+                );
+            }
+            // Loop though columns
+            for (int column = 0; column < headers.length; column++) {
+                try {
+                    Object cellValue = row[column];
+                    // Get header value for this column
+                    String header = headers[column];
+                    if (isBlank(cellValue) || header.isEmpty()) {
+                        continue;
+                    }
+                    String key = header
+                            .replace(String.format("%s.", ARRAY_MARKER),
+                                    String.format("%s.%s.", ARRAY_MARKER, ITEM));
+                    String[] keyArray = key.split("\\.");
+                    String targetParentKey;
+                    if (key.endsWith(ARRAY_MARKER)) {
+                        targetParentKey = key;
+                    } else {
+                        targetParentKey = removeLastKeyField(key);
+                    }
+                    log.debug("cell_value={} target_key={}", cellValue, targetParentKey);
+                    JsonObject parent = stack.peek();
+                    String parentKey = parent.getString(FieldNameConstants.KEY);
+                    if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
+                            && valueIsAlreadyPopulated(parent.getJsonObject(FieldNameConstants.VALUE), getRemainingKey(key, parentKey))) {
+                        parent = resetToPreviousArray(stack);
+                        parentKey = parent.getString(FieldNameConstants.KEY);
+                    }
+                    // Add objects on top of stack until the target parent key is reached
+                    while (!targetParentKey.equals(parentKey)) {
+                        log.debug("current parent={}", parent);
+                        if (isChildKey(parentKey, targetParentKey)) {
+                            // Create new object on top of stack
+                            String remainingKey = getRemainingKey(key, parentKey);
+                            String newKey = remainingKey.split("\\.")[0];
+                            Object newValue;
+                            if (newKey.endsWith(ARRAY_MARKER)) {
+                                String arrayKey = newKey.replace(ARRAY_MARKER, "");
+                                if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
+                                        && parent.getJsonObject(FieldNameConstants.VALUE).getValue(arrayKey) instanceof JsonArray) {
+                                    newValue = parent.getJsonObject(FieldNameConstants.VALUE).getValue(arrayKey);
                                 } else {
-                                    newValue = new JsonObject();
-                                }
-                                if (StringUtils.isNotBlank(parentKey)) {
-                                    newKey = String.format("%s.%s", parentKey, newKey);
-                                }
-                                JsonObject newParent = new JsonObject()
-                                        .put(FieldNameConstants.KEY, newKey)
-                                        .put(FieldNameConstants.VALUE, newValue);
-                                log.debug("navigating to item={}", newParent);
-
-                                Object parentValue = parent.getValue(FieldNameConstants.VALUE);
-                                if (parentValue instanceof JsonObject) {
-                                    String childKey = newKey.substring(newKey.lastIndexOf(".") + 1).replace(ARRAY_MARKER, "");
-                                    ((JsonObject) parentValue).put(childKey, newValue);
-                                } else if (parentValue instanceof JsonArray && !((JsonArray) parentValue).contains(newValue)) {
-                                    ((JsonArray) parentValue).add(newValue);
+                                    newValue = new JsonArray();
                                 }
-
-                                parent = stack.push(newParent);
+                            } else if (parentKey.endsWith(ARRAY_MARKER)
+                                    && parent.getValue(FieldNameConstants.VALUE) instanceof JsonArray
+                                    && !parent.getJsonArray(FieldNameConstants.VALUE).isEmpty()) {
+                                JsonArray parentArray = parent.getJsonArray(FieldNameConstants.VALUE);
+                                newValue = parentArray.getJsonObject(parentArray.size() - 1);
+                            } else if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
+                                    && parent.getJsonObject(FieldNameConstants.VALUE).getValue(newKey) != null) {
+                                newValue = parent.getJsonObject(FieldNameConstants.VALUE).getValue(newKey);
                             } else {
-                                // Backtrack in stack
-                                log.debug("backtracking");
-                                stack.pop();
-                                parent = stack.peek();
+                                newValue = new JsonObject();
                             }
-                            parentKey = parent.getString(FieldNameConstants.KEY);
-                            if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
-                                    && valueIsAlreadyPopulated(parent.getJsonObject(FieldNameConstants.VALUE), getRemainingKey(key, parentKey))) {
-                                parent = resetToPreviousArray(stack);
-                                parentKey = parent.getString(FieldNameConstants.KEY);
+                            if (StringUtils.isNotBlank(parentKey)) {
+                                newKey = String.format("%s.%s", parentKey, newKey);
                             }
+                            JsonObject newParent = new JsonObject()
+                                    .put(FieldNameConstants.KEY, newKey)
+                                    .put(FieldNameConstants.VALUE, newValue);
+                            log.debug("navigating to item={}", newParent);
+
+                            Object parentValue = parent.getValue(FieldNameConstants.VALUE);
+                            if (parentValue instanceof JsonObject) {
+                                String childKey = newKey.substring(newKey.lastIndexOf(".") + 1).replace(ARRAY_MARKER, "");
+                                ((JsonObject) parentValue).put(childKey, newValue);
+                            } else if (parentValue instanceof JsonArray && !((JsonArray) parentValue).contains(newValue)) {
+                                ((JsonArray) parentValue).add(newValue);
+                            }
+
+                            parent = stack.push(newParent);
+                        } else {
+                            // Backtrack in stack
+                            log.debug("backtracking");
+                            stack.pop();
+                            parent = stack.peek();
                         }
-                        Object parentValue = parent.getValue(FieldNameConstants.VALUE);
-                        log.debug("final parent={}", parent);
-                        if (parentValue instanceof JsonObject) {
-                            addCellValue((JsonObject) parentValue, keyArray[keyArray.length - 1], cell);
-                        } else if (parentValue instanceof JsonArray) {
-                            addCellValue((JsonArray) parentValue, cell);
+                        parentKey = parent.getString(FieldNameConstants.KEY);
+                        if (parent.getValue(FieldNameConstants.VALUE) instanceof JsonObject
+                                && valueIsAlreadyPopulated(parent.getJsonObject(FieldNameConstants.VALUE), getRemainingKey(key, parentKey))) {
+                            parent = resetToPreviousArray(stack);
+                            parentKey = parent.getString(FieldNameConstants.KEY);
                         }
-                    } catch (Exception e) {
-                        log.error("error processing cell trace_id=" + traceId, e);
                     }
+                    Object parentValue = parent.getValue(FieldNameConstants.VALUE);
+                    log.debug("final parent={}", parent);
+                    if (parentValue instanceof JsonObject) {
+                        addCellValue((JsonObject) parentValue, keyArray[keyArray.length - 1], cellValue);
+                    } else if (parentValue instanceof JsonArray) {
+                        addCellValue((JsonArray) parentValue, cellValue);
+                    }
+                } catch (Exception e) {
+                    log.error("error processing cell trace_id=" + traceId, e);
                 }
+            }
+        }
+    }
+
+    /**
+     * Reads the cells of a sheet and hands every row to the consumer with its row index, as the values of its
+     * cells by column. Blank cells are null, cells without a value to read like formulas and errors
+     * are {@link #NO_VALUE}, numbers formatted as dates are converted to strings.
+     */
+    private static final class SheetHandler extends DefaultHandler {
+
+        private final SharedStrings sharedStrings;
+        private final StylesTable styles;
+        private final boolean date1904;
+        private final ObjIntConsumer<Object[]> rowConsumer;
+        // date formats by style index
+        private final Map<Integer, Boolean> dateStyles = new HashMap<>();
+        private final StringBuilder text = new StringBuilder();
+        private Object[] row = new Object[16];
+        private int rowSize;
+        private int rowNum = -1;
+        private int column;
+        private String cellType;
+        private String cellStyle;
+        private boolean formula;
+        private boolean hasValue;
+        private boolean inText;
+        private boolean inPhonetic;
+
+        private SheetHandler(SharedStrings sharedStrings, StylesTable styles, boolean date1904,
+                             ObjIntConsumer<Object[]> rowConsumer) {
+            this.sharedStrings = sharedStrings;
+            this.styles = styles;
+            this.date1904 = date1904;
+            this.rowConsumer = rowConsumer;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    String rowRef = attributes.getValue("r");
+                    rowNum = rowRef == null ? rowNum + 1 : Integer.parseInt(rowRef) - 1;
+                    rowSize = 0;
+                    column = -1;
+                    break;
+                case "c":
+                    String cellRef = attributes.getValue("r");
+                    column = cellRef == null ? column + 1 : getColumn(cellRef);
+                    cellType = attributes.getValue("t");
+                    cellStyle = attributes.getValue("s");
+                    formula = false;
+                    hasValue = false;
+                    text.setLength(0);
+                    break;
+                case "f":
+                    formula = true;
+                    break;
+                case "v":
+                    hasValue = true;
+                    inText = true;
+                    break;
+                case "rPh":
+                    inPhonetic = true;
+                    break;
+                case "t":
+                    // text of an inline string, without its phonetic runs
+                    if (!inPhonetic) {
+                        hasValue = true;
+                        inText = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inText = false;
+                    break;
+                case "rPh":
+                    inPhonetic = false;
+                    break;
+                case "c":
+                    if (column >= row.length) {
+                        row = Arrays.copyOf(row, Math.max(column + 1, row.length * 2));
+                    }
+                    Arrays.fill(row, rowSize, column, null);
+                    row[column] = getCellValue();
+                    rowSize = Math.max(rowSize, column + 1);
+                    break;
+                case "row":
+                    rowConsumer.accept(Arrays.copyOf(row, rowSize), rowNum);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText) {
+                text.append(ch, start, length);
+            }
+        }
+
+        /**
+         * Get cell value depending on cell type
+         */
+        private Object getCellValue() {
+            if (formula) {
+                return NO_VALUE;
+            }
+            if (!hasValue) {
+                return null;
+            }
+            String type = cellType == null ? "n" : cellType;
+            switch (type) {
+                case "s":
+                    return sharedStrings.getItemAt(Integer.parseInt(text.toString())).getString();
+                case "inlineStr":
+                case "str":
+                    // decodes the escaped characters like the shared strings
+                    return new XSSFRichTextString(text.toString()).getString();
+                case "n":
+                    if (text.length() == 0) {
+                        return null;
+                    }
+                    double number = Double.parseDouble(text.toString());
+                    if (isDateFormatted(number)) {
+                        return dateToString(DateUtil.getJavaDate(number, date1904));
+                    }
+                    return number;
+                case "b":
+                    return "1".equals(text.toString());
+                default:
+                    return NO_VALUE;
+            }
+        }
+
+        private boolean isDateFormatted(double number) {
+            if (styles == null || !DateUtil.isValidExcelDate(number)) {
+                return false;
+            }
+            int styleIndex = cellStyle == null ? 0 : Integer.parseInt(cellStyle);
+            return dateStyles.computeIfAbsent(styleIndex, index -> {
+                ExcelNumberFormat numberFormat = ExcelNumberFormat.from(styles.getStyleAt(index));
+                return numberFormat != null && DateUtil.isADateFormat(numberFormat);
             });
-        });
-        // Remove all placeholder and empty values
-        JsonObject processedData = CommonUtil.removeNullOrEmpty(data, PLACEHOLDER);
-        // Combine child object with parents
-        combineObjects(processedData);
-        // Get first sheet list
-        processedData = new JsonObject().put("data", processedData.getJsonArray(workbook.getSheetName(1)));
-        // Add meta data
-        addRequestData(processedData, workbook.getSheetAt(0));
-        // Close files
-        workbook.close();
-        inputStream.close();
-        return processedData;
+        }
+
+        /**
+         * Column index of a cell reference like AB12
+         */
+        private static int getColumn(String cellRef) {
+            int column = 0;
+            for (int i = 0; i < cellRef.length() && Character.isLetter(cellRef.charAt(i)); i++) {
+                column = column * 26 + Character.toUpperCase(cellRef.charAt(i)) - 'A' + 1;
+            }
+            return column - 1;
+        }
     }
 
     /**
@@ -247,25 +539,18 @@ public class ExcelToJson {
      * Adds placeholder values to empty cells for each object.
      * Placeholder values will be removed after translation is complete.
      */
-    private static void addPlaceholders(Sheet sheet) {
-        Iterator<Row> rowIterator = sheet.rowIterator();
-        Row headers = rowIterator.next();
-        rowIterator.forEachRemaining(row -> {
-            for (int i = 0; i < headers.getLastCellNum(); i++) {
-                Cell cell = row.getCell(i);
-                String key = headers.getCell(i).getStringCellValue();
-                if (!isBlank(cell) && !key.endsWith(ARRAY_MARKER)) {
-                    for (int j = 0; j < headers.getLastCellNum(); j++) {
-                        Cell blankCell = row.getCell(j);
-                        String blankCellKey = headers.getCell(j).getStringCellValue();
-                        if (isBlank(blankCell) && keysAreInSameObject(key, blankCellKey)) {
-                            log.debug("adding placeholder value at row={} col={}", row.getRowNum(), j);
-                            row.createCell(j).setCellValue(PLACEHOLDER);
-                        }
+    private static void addPlaceholders(String[] headers, Object[] row, int rowNum) {
+        for (int i = 0; i < headers.length; i++) {
+            String key = headers[i];
+            if (!isBlank(row[i]) && !key.endsWith(ARRAY_MARKER)) {
+                for (int j = 0; j < headers.length; j++) {
+                    if (isBlank(row[j]) && keysAreInSameObject(key, headers[j])) {
+                        log.debug("adding placeholder value at row={} col={}", rowNum, j);
+                        row[j] = PLACEHOLDER;
                     }
                 }
             }
-        });
+        }
     }
 
     /**
@@ -288,18 +573,15 @@ public class ExcelToJson {
     /**
      * Return true is the cell is null, blank, or contains an empty string
      */
-    private static boolean isBlank(Cell cell) {
-        return cell == null
-                || cell.getCellType().equals(CellType.BLANK)
-                || (cell.getCellType().equals(CellType.STRING) && cell.getStringCellValue().isEmpty());
+    private static boolean isBlank(Object cellValue) {
+        return cellValue == null || "".equals(cellValue);
     }
 
     /**
      * Add cell value to JsonObject depending on cell type
      */
-    private static void addCellValue(JsonObject jsonObject, String key, Cell cell) {
-        Object cellValue = getCellValue(cell);
-        if (cellValue != null) {
+    private static void addCellValue(JsonObject jsonObject, String key, Object cellValue) {
+        if (cellValue != null && cellValue != NO_VALUE) {
             jsonObject.put(key, cellValue);
         }
     }
@@ -307,33 +589,12 @@ public class ExcelToJson {
     /**
      * Add cell value to JsonArray depending on cell type
      */
-    private static void addCellValue(JsonArray jsonArray, Cell cell) {
-        Object cellValue = getCellValue(cell);
-        if (cellValue != null) {
+    private static void addCellValue(JsonArray jsonArray, Object cellValue) {
+        if (cellValue != null && cellValue != NO_VALUE) {
             jsonArray.add(cellValue);
         }
     }
 
-    /**
-     * Get cell value depending on cell type
-     */
-    private static Object getCellValue(Cell cell) {
-        switch (cell.getCellType()) {
-            case STRING:
-                return cell.getStringCellValue();
-            case NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    return dateToString(cell.getDateCellValue());
-                } else {
-                    return cell.getNumericCellValue();
-                }
-            case BOOLEAN:
-                return cell.getBooleanCellValue();
-            default:
-                return null;
-        }
-    }
-
     /**
      * Convert Date to string
      */
@@ -373,22 +634,18 @@ public class ExcelToJson {
     /**
      * Add request data to json object from the fist sheet
      */
-    private static void addRequestData(JsonObject data, Sheet meta) {
-        Row headerRow = meta.getRow(0);
-        Row valueRow = meta.getRow(1);
+    private static void addRequestData(JsonObject data, Object[] headerRow, Object[] valueRow) {
         JsonObject requestObject = new JsonObject();
         String requestId = UUID.randomUUID().toString();
         requestObject.put("request_id", requestId);
         requestObject.put("timestamp", Instant.now().toString());
         data.put("request", requestObject);
-        headerRow.forEach(cell -> {
-            String key = cell.getStringCellValue();
-            Cell value = valueRow.getCell(cell.getColumnIndex());
-            if (value != null) {
-                addCellValue(requestObject, key, value);
+        for (int column = 0; headerRow != null && column < headerRow.length; column++) {
+            if (headerRow[column] instanceof String && valueRow != null && column < valueRow.length) {
+                addCellValue(requestObject, (String) headerRow[column], valueRow[column]);
             }
-        });
+        }
         data.put(QueryConstants.GUID, requestId);
         data.put(QueryConstants.DOCUMENT_TYPE, "template-load");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,448 @@
+import io.vertx.core.json.JsonObject;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares two collections of json documents joined by a key field.
+ * Each side is cut into sorted runs that fit in memory, spilled to temporary
+ * json lines files when there is more than one run, and merged back in key order.
+ * The sorted sides are merge joined and matched pairs are compared with
+ * JsonEqual on a thread pool, so memory stays bounded by the run size.
+ * The first copy of a key that occurs more than once on a side is compared,
+ * the other copies are reported as duplicates.
+ */
+public class JsonDatasetEqual {
+
+    private static final int DEFAULT_RUN_SIZE = 100_000;
+    private static final int DEFAULT_MAX_REPORTED_KEYS = 1000;
+
+    private final String keyField;
+    private int runSize = DEFAULT_RUN_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxReportedKeys = DEFAULT_MAX_REPORTED_KEYS;
+
+    public JsonDatasetEqual(String keyField) {
+        this.keyField = keyField;
+    }
+
+    /**
+     * Number of documents sorted in memory before a run is spilled to disk
+     */
+    public JsonDatasetEqual runSize(int runSize) {
+        this.runSize = runSize;
+        return this;
+    }
+
+    /**
+     * Number of threads comparing matched pairs
+     */
+    public JsonDatasetEqual parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Maximum number of keys listed per category in the report, counts are always complete
+     */
+    public JsonDatasetEqual maxReportedKeys(int maxReportedKeys) {
+        this.maxReportedKeys = maxReportedKeys;
+        return this;
+    }
+
+    /**
+     * Compare two json lines files, one document per line
+     */
+    public Report compare(Path expected, Path actual) throws IOException {
+        try (BufferedReader expectedReader = Files.newBufferedReader(expected, StandardCharsets.UTF_8);
+             BufferedReader actualReader = Files.newBufferedReader(actual, StandardCharsets.UTF_8)) {
+            return compare(readLines(expectedReader), readLines(actualReader));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Compare two collections of documents in any order
+     */
+    public Report compare(Iterator<JsonObject> expected, Iterator<JsonObject> actual) throws IOException {
+        Report report = new Report(maxReportedKeys);
+        List<Path> runFiles = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // Bound the pairs waiting for a thread so the join never runs ahead of the comparisons
+        Semaphore pending = new Semaphore(parallelism * 4);
+        // First failure of a comparison, the join stops and it is thrown once the pool is drained
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+        try {
+            Iterator<JsonObject> sortedExpected = sort(expected, report, runFiles);
+            Iterator<JsonObject> sortedActual = sort(actual, report, runFiles);
+            JsonObject left = next(sortedExpected);
+            JsonObject right = next(sortedActual);
+            while ((left != null || right != null) && failure.get() == null) {
+                int order = left == null ? 1 : right == null ? -1
+                        : left.getString(keyField).compareTo(right.getString(keyField));
+                if (order < 0) {
+                    report.addMissing(left.getString(keyField));
+                    left = nextKey(sortedExpected, left, report);
+                } else if (order > 0) {
+                    report.addExtra(right.getString(keyField));
+                    right = nextKey(sortedActual, right, report);
+                } else {
+                    pending.acquire();
+                    JsonObject expectedDocument = left;
+                    JsonObject actualDocument = right;
+                    executor.execute(() -> {
+                        try {
+                            report.comparePair(expectedDocument.getString(keyField), expectedDocument, actualDocument);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            pending.release();
+                        }
+                    });
+                    left = nextKey(sortedExpected, left, report);
+                    right = nextKey(sortedActual, right, report);
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            Throwable error = failure.get();
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new IOException("failed comparing datasets", error);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted comparing datasets", e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            executor.shutdownNow();
+            for (Path runFile : runFiles) {
+                Files.deleteIfExists(runFile);
+            }
+        }
+        report.setElapsedNanos(System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Next document of a sorted side with a key other than the previous one, copies of the previous key
+     * are reported as duplicates
+     */
+    private JsonObject nextKey(Iterator<JsonObject> sorted, JsonObject previous, Report report) {
+        String previousKey = previous.getString(keyField);
+        JsonObject document = next(sorted);
+        while (document != null && previousKey.equals(document.getString(keyField))) {
+            report.addDuplicate(previousKey);
+            document = next(sorted);
+        }
+        return document;
+    }
+
+    /**
+     * Adapt Couchbase query rows to the documents compared here
+     */
+    public static Iterator<JsonObject> fromCouchbase(Iterator<com.couchbase.client.java.json.JsonObject> rows) {
+        return new Iterator<JsonObject>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public JsonObject next() {
+                return new JsonObject(rows.next().toMap());
+            }
+        };
+    }
+
+    /**
+     * Sort documents by key, in memory when they fit in one run, otherwise by merging spilled runs
+     */
+    private Iterator<JsonObject> sort(Iterator<JsonObject> documents, Report report, List<Path> runFiles) throws IOException {
+        Comparator<JsonObject> byKey = Comparator.comparing(document -> document.getString(keyField));
+        List<Path> runs = new ArrayList<>();
+        List<JsonObject> run = new ArrayList<>();
+        while (documents.hasNext()) {
+            JsonObject document = documents.next();
+            if (!(document.getValue(keyField) instanceof String)) {
+                report.unkeyed.incrementAndGet();
+                continue;
+            }
+            run.add(document);
+            if (run.size() >= runSize) {
+                run.sort(byKey);
+                runs.add(spill(run, runFiles));
+                run.clear();
+            }
+        }
+        run.sort(byKey);
+        if (runs.isEmpty()) {
+            return run.iterator();
+        }
+        if (!run.isEmpty()) {
+            runs.add(spill(run, runFiles));
+        }
+        return new RunMerger(runs, byKey);
+    }
+
+    private static Path spill(List<JsonObject> run, List<Path> runFiles) throws IOException {
+        Path runFile = Files.createTempFile("json-dataset-run", ".jsonl");
+        runFiles.add(runFile);
+        try (BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)) {
+            for (JsonObject document : run) {
+                writer.write(document.encode());
+                writer.newLine();
+            }
+        }
+        return runFile;
+    }
+
+    private static Iterator<JsonObject> readLines(BufferedReader reader) {
+        return reader.lines()
+                .filter(line -> !line.trim().isEmpty())
+                .map(JsonObject::new)
+                .iterator();
+    }
+
+    private static JsonObject next(Iterator<JsonObject> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * K-way merge of sorted run files
+     */
+    private static final class RunMerger implements Iterator<JsonObject> {
+
+        private final PriorityQueue<RunReader> queue;
+
+        private RunMerger(List<Path> runs, Comparator<JsonObject> byKey) throws IOException {
+            queue = new PriorityQueue<>(runs.size(), (run1, run2) -> byKey.compare(run1.current, run2.current));
+            for (Path run : runs) {
+                RunReader reader = new RunReader(Files.newBufferedReader(run, StandardCharsets.UTF_8));
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public JsonObject next() {
+            RunReader reader = queue.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            JsonObject document = reader.current;
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+            return document;
+        }
+    }
+
+    private static final class RunReader {
+
+        private final BufferedReader reader;
+        private JsonObject current;
+
+        private RunReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        private boolean advance() {
+            try {
+                String line = reader.readLine();
+                if (line == null) {
+                    reader.close();
+                    return false;
+                }
+                current = new JsonObject(line);
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Result of a dataset comparison, missing keys are only in the expected dataset
+     * and extra keys are only in the actual dataset
+     */
+    public static final class Report {
+
+        private final int maxReportedKeys;
+        private final AtomicLong matched = new AtomicLong();
+        private final AtomicLong mismatched = new AtomicLong();
+        private final AtomicLong missing = new AtomicLong();
+        private final AtomicLong extra = new AtomicLong();
+        private final AtomicLong unkeyed = new AtomicLong();
+        private final AtomicLong duplicate = new AtomicLong();
+        private final Queue<String> missingKeys = new ConcurrentLinkedQueue<>();
+        private final Queue<String> extraKeys = new ConcurrentLinkedQueue<>();
+        private final Set<String> duplicateKeys = new ConcurrentSkipListSet<>();
+        private final Map<String, List<JsonDiff.Difference>> mismatchedKeys = new ConcurrentSkipListMap<>();
+        private final Histogram latency = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+        private long elapsedNanos;
+
+        Report(int maxReportedKeys) {
+            this.maxReportedKeys = maxReportedKeys;
+        }
+
+        void comparePair(String key, JsonObject expected, JsonObject actual) {
+            long start = System.nanoTime();
+            boolean equal = JsonEqual.jsonEqual(expected, actual);
+            latency.recordValue(Math.min(latency.getHighestTrackableValue(),
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+            if (equal) {
+                matched.incrementAndGet();
+            } else if (mismatched.incrementAndGet() <= maxReportedKeys) {
+                // Keep the first few differences of reported keys to show what drifted
+                mismatchedKeys.put(key, JsonDiff.diff(expected, actual, 5));
+            }
+        }
+
+        /**
+         * Pair already known to be equal, for example by fingerprint
+         */
+        void addMatched() {
+            matched.incrementAndGet();
+        }
+
+        /**
+         * Pair already known to differ, for example by an exact comparison. The differences are diffed with
+         * null as a value and array moves reported, a difference in number types alone lists none.
+         */
+        void addMismatched(String key, JsonObject expected, JsonObject actual) {
+            if (mismatched.incrementAndGet() <= maxReportedKeys) {
+                List<JsonDiff.Difference> differences = new ArrayList<>();
+                JsonDiff.diff(expected, actual, 5, true, true, differences::add);
+                mismatchedKeys.put(key, differences);
+            }
+        }
+
+        void addMissing(String key) {
+            if (missing.incrementAndGet() <= maxReportedKeys) {
+                missingKeys.add(key);
+            }
+        }
+
+        void addExtra(String key) {
+            if (extra.incrementAndGet() <= maxReportedKeys) {
+                extraKeys.add(key);
+            }
+        }
+
+        /**
+         * Another copy of a key already joined on the same side
+         */
+        void addDuplicate(String key) {
+            if (duplicate.incrementAndGet() <= maxReportedKeys) {
+                duplicateKeys.add(key);
+            }
+        }
+
+        void setElapsedNanos(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * True when every document was compared and matched, documents without a key or with a duplicate
+         * key could not be compared and make the datasets unequal
+         */
+        public boolean isEqual() {
+            return mismatched.get() == 0 && missing.get() == 0 && extra.get() == 0 && unkeyed.get() == 0
+                    && duplicate.get() == 0;
+        }
+
+        public long getMatched() {
+            return matched.get();
+        }
+
+        public long getMismatched() {
+            return mismatched.get();
+        }
+
+        public long getMissing() {
+            return missing.get();
+        }
+
+        public long getExtra() {
+            return extra.get();
+        }
+
+        /**
+         * Documents skipped because they have no string key
+         */
+        public long getUnkeyed() {
+            return unkeyed.get();
+        }
+
+        /**
+         * Extra copies of keys that occur more than once on one side
+         */
+        public long getDuplicate() {
+            return duplicate.get();
+        }
+
+        public List<String> getMissingKeys() {
+            return new ArrayList<>(missingKeys);
+        }
+
+        public List<String> getExtraKeys() {
+            return new ArrayList<>(extraKeys);
+        }
+
+        public List<String> getDuplicateKeys() {
+            return new ArrayList<>(duplicateKeys);
+        }
+
+        public Map<String, List<JsonDiff.Difference>> getMismatchedKeys() {
+            return mismatchedKeys;
+        }
+
+        /**
+         * Latency of each pair comparison in microseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Compared pairs per second over the whole run
+         */
+        public double getThroughput() {
+            long pairs = matched.get() + mismatched.get();
+            return elapsedNanos == 0 ? 0 : pairs * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("matched=%d mismatched=%d missing=%d extra=%d unkeyed=%d duplicate=%d "
+                            + "throughput=%.0f/s latency_us p50=%d p99=%d max=%d",
+                    getMatched(), getMismatched(), getMissing(), getExtra(), getUnkeyed(), getDuplicate(),
+                    getThroughput(),
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(99), latency.getMaxValue());
+        }
+    }
+}
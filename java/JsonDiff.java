@@ -0,0 +1,318 @@
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Structural diff of two json documents using the same semantics as JsonEqual,
+ * objects are compared by key and arrays are compared as multisets.
+ * Differences are reported with JSON Pointer paths.
+ */
+public class JsonDiff {
+
+    public enum Type {
+        ADDED, REMOVED, CHANGED, MOVED
+    }
+
+    public static final class Difference {
+
+        private final Type type;
+        private final String path;
+        private final String fromPath;
+        private final Object oldValue;
+        private final Object newValue;
+
+        private Difference(Type type, String path, String fromPath, Object oldValue, Object newValue) {
+            this.type = type;
+            this.path = path;
+            this.fromPath = fromPath;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Pointer into the source document, or into the target document for ADDED and MOVED
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Pointer into the source document for MOVED, null otherwise
+         */
+        public String getFromPath() {
+            return fromPath;
+        }
+
+        public Object getOldValue() {
+            return oldValue;
+        }
+
+        public Object getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case ADDED:
+                    return String.format("%s %s: %s", type, path, newValue);
+                case REMOVED:
+                    return String.format("%s %s: %s", type, path, oldValue);
+                case MOVED:
+                    return String.format("%s %s -> %s", type, fromPath, path);
+                default:
+                    return String.format("%s %s: %s -> %s", type, path, oldValue, newValue);
+            }
+        }
+    }
+
+    private JsonDiff() {
+    }
+
+    /**
+     * Get all differences between two documents
+     */
+    public static List<Difference> diff(JsonObject source, JsonObject target) {
+        return diff(source, target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the first differences between two documents, an empty list means the documents are equal
+     *
+     * @param maxDifferences stop walking once this many differences are found
+     */
+    public static List<Difference> diff(JsonObject source, JsonObject target, int maxDifferences) {
+        List<Difference> differences = new ArrayList<>();
+        diff(source, target, maxDifferences, false, differences::add);
+        return differences;
+    }
+
+    /**
+     * Walk both documents once and emit each difference as it is found, see
+     * {@link #diff(JsonObject, JsonObject, int, boolean, boolean, Consumer)}
+     */
+    public static boolean diff(JsonObject source, JsonObject target, int maxDifferences, boolean reportMoves,
+                               Consumer<Difference> consumer) {
+        return diff(source, target, maxDifferences, reportMoves, false, consumer);
+    }
+
+    /**
+     * Walk both documents once and emit each difference as it is found.
+     * With maxDifferences of 1 this costs no more than JsonEqual.jsonEqual.
+     * The result is the result of jsonEqual, where a null value also matches a missing key as long as
+     * both objects hold the same number of keys. Such keys are then not reported.
+     *
+     * @param source         original document
+     * @param target         document compared against the source
+     * @param maxDifferences stop walking once this many differences are emitted, moves are not counted
+     * @param reportMoves    emit MOVED for equal array items found at a different index,
+     *                       moves never make the documents unequal
+     * @param nullIsValue    treat a key holding null as present, so null against a missing key is reported
+     *                       and makes the documents unequal
+     * @param consumer       receives the differences
+     * @return true if the documents are equal
+     */
+    public static boolean diff(JsonObject source, JsonObject target, int maxDifferences, boolean reportMoves,
+                               boolean nullIsValue, Consumer<Difference> consumer) {
+        Walker walker = new Walker(maxDifferences, reportMoves, nullIsValue, consumer);
+        walker.compare(source, target, "");
+        return walker.equal;
+    }
+
+    /**
+     * Escape a field name for use in a JSON Pointer
+     */
+    private static String escape(String key) {
+        return key.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static final class Walker {
+
+        private final int maxDifferences;
+        private final boolean reportMoves;
+        private final boolean nullIsValue;
+        private final Consumer<Difference> consumer;
+        private int count;
+        private boolean equal = true;
+
+        private Walker(int maxDifferences, boolean reportMoves, boolean nullIsValue, Consumer<Difference> consumer) {
+            this.maxDifferences = maxDifferences;
+            this.reportMoves = reportMoves;
+            this.nullIsValue = nullIsValue;
+            this.consumer = consumer;
+        }
+
+        private boolean done() {
+            return count >= maxDifferences;
+        }
+
+        private void emit(Type type, String path, String fromPath, Object oldValue, Object newValue) {
+            // Moves do not count, they would use up the differences before the walk reaches a real one
+            if (type != Type.MOVED) {
+                equal = false;
+                count++;
+            }
+            consumer.accept(new Difference(type, path, fromPath, oldValue, newValue));
+        }
+
+        private void compare(Object value1, Object value2, String path) {
+            if (value1 instanceof JsonObject && value2 instanceof JsonObject) {
+                compareObjects((JsonObject) value1, (JsonObject) value2, path);
+            } else if (value1 instanceof JsonArray && value2 instanceof JsonArray) {
+                compareArrays((JsonArray) value1, (JsonArray) value2, path);
+            } else if (!Objects.equals(value1, value2)) {
+                emit(Type.CHANGED, path, null, value1, value2);
+            }
+        }
+
+        private void compareObjects(JsonObject object1, JsonObject object2, String path) {
+            if (object1.equals(object2)) {
+                return;
+            }
+            // Like jsonEqual, nulls of the source match missing keys of the target if both hold as many keys,
+            // the keys only found in the target are then paired with those nulls
+            boolean nullsMatchMissing = !nullIsValue && object1.size() == object2.size()
+                    && object1.getMap().entrySet().stream()
+                    .allMatch(entry -> entry.getValue() == null || object2.containsKey(entry.getKey()));
+            for (Map.Entry<String, Object> entry : object1) {
+                if (done()) {
+                    return;
+                }
+                String key = entry.getKey();
+                String childPath = path + "/" + escape(key);
+                if (!object2.containsKey(key)) {
+                    if (!nullsMatchMissing) {
+                        emit(Type.REMOVED, childPath, null, entry.getValue(), null);
+                    }
+                } else {
+                    compare(entry.getValue(), object2.getValue(key), childPath);
+                }
+            }
+            for (Map.Entry<String, Object> entry : object2) {
+                if (done()) {
+                    return;
+                }
+                if (!object1.containsKey(entry.getKey()) && !nullsMatchMissing) {
+                    emit(Type.ADDED, path + "/" + escape(entry.getKey()), null, null, entry.getValue());
+                }
+            }
+        }
+
+        private void compareArrays(JsonArray array1, JsonArray array2, String path) {
+            if (!nullIsValue) {
+                // jsonEqual decides, the matching below only reports where the arrays differ
+                if (JsonEqual.jsonEqual(array1, array2)) {
+                    if (reportMoves) {
+                        matchEqualItems(array1, array2, path, new ArrayList<>());
+                    }
+                    return;
+                }
+                int found = count;
+                matchItems(array1, array2, path);
+                if (count == found && !done()) {
+                    // Items only told apart by a null matching a missing key, report the array as a whole
+                    emit(Type.CHANGED, path, null, array1, array2);
+                }
+            } else if (!array1.equals(array2)) {
+                matchItems(array1, array2, path);
+            }
+        }
+
+        /**
+         * Pair the equal items of both arrays, then report the items left over
+         */
+        private void matchItems(JsonArray array1, JsonArray array2, String path) {
+            List<Integer> unmatched2 = new ArrayList<>();
+            Map<Integer, List<Integer>> buckets = matchEqualItems(array1, array2, path, unmatched2);
+            List<Integer> unmatched1 = new ArrayList<>();
+            buckets.values().forEach(unmatched1::addAll);
+            Collections.sort(unmatched1);
+            // Pair the remaining items of the same kind in order so changes inside containers are reported by field
+            Map<Integer, Deque<Integer>> unmatchedByKind = new HashMap<>();
+            unmatched1.forEach(i -> unmatchedByKind.computeIfAbsent(kind(array1.getValue(i)), k -> new ArrayDeque<>()).add(i));
+            List<Integer> added = new ArrayList<>();
+            for (int j : unmatched2) {
+                if (done()) {
+                    return;
+                }
+                Object item2 = array2.getValue(j);
+                Deque<Integer> candidates = unmatchedByKind.get(kind(item2));
+                if (candidates == null || candidates.isEmpty()) {
+                    added.add(j);
+                } else {
+                    int i = candidates.poll();
+                    compare(array1.getValue(i), item2, path + "/" + i);
+                }
+            }
+            for (int i : unmatched1) {
+                if (done()) {
+                    return;
+                }
+                if (unmatchedByKind.get(kind(array1.getValue(i))).remove(i)) {
+                    emit(Type.REMOVED, path + "/" + i, null, array1.getValue(i), null);
+                }
+            }
+            for (int j : added) {
+                if (done()) {
+                    return;
+                }
+                emit(Type.ADDED, path + "/" + j, null, null, array2.getValue(j));
+            }
+        }
+
+        /**
+         * Match equal items by structural hash the same way JsonEqual does and report the moved ones.
+         * Adds the unmatched indexes of the target array to unmatched2 and returns the unmatched indexes of the
+         * source array by hash.
+         */
+        private Map<Integer, List<Integer>> matchEqualItems(JsonArray array1, JsonArray array2, String path,
+                                                            List<Integer> unmatched2) {
+            Map<Integer, List<Integer>> buckets = new HashMap<>();
+            for (int i = 0; i < array1.size(); i++) {
+                buckets.computeIfAbsent(JsonEqual.structuralHash(array1.getValue(i)), hash -> new ArrayList<>()).add(i);
+            }
+            for (int j = 0; j < array2.size() && !done(); j++) {
+                Object item2 = array2.getValue(j);
+                List<Integer> bucket = buckets.get(JsonEqual.structuralHash(item2));
+                int match = bucket == null ? -1 : removeEqualItem(bucket, array1, item2);
+                if (match < 0) {
+                    unmatched2.add(j);
+                } else if (reportMoves && match != j) {
+                    emit(Type.MOVED, path + "/" + j, path + "/" + match, null, null);
+                }
+            }
+            return buckets;
+        }
+
+        private static int kind(Object value) {
+            if (value instanceof JsonObject) {
+                return 1;
+            } else if (value instanceof JsonArray) {
+                return 2;
+            }
+            return 0;
+        }
+
+        /**
+         * Remove the index of an item equal to the given item from the bucket, returns -1 when there is none
+         */
+        private static int removeEqualItem(List<Integer> bucket, JsonArray array1, Object item) {
+            for (int k = 0; k < bucket.size(); k++) {
+                int index = bucket.get(k);
+                if (JsonEqual.jsonEqual(array1.getValue(index), item)) {
+                    int last = bucket.size() - 1;
+                    bucket.set(k, bucket.get(last));
+                    bucket.remove(last);
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -1,51 +1,373 @@
-public static boolean jsonEqual(JsonObject object1, JsonObject object2) {
-    if (object1 == null || object2 == null) {
-        return object1 == null && object2 == null;
-    } else if (object1.equals(object2)) {
-        return true;
-    } else if (object1.size() != object2.size()) {
-        return false;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+public class JsonEqual {
+
+    /**
+     * Objects and arrays larger than this are split across the pool in parallel mode
+     */
+    private static final int PARALLEL_THRESHOLD = 512;
+
+    private JsonEqual() {
     }
-    return object1.stream().allMatch(entry -> {
-        String key = entry.getKey();
-        Object value1 = entry.getValue();
-        Object value2 = object2.getValue(key);
-        if (value1 == null || value2 == null) {
-            return value1 == null && value2 == null;
-        } else if (value1 instanceof JsonObject && value2 instanceof JsonObject) {
-            return jsonEqual((JsonObject) value1, (JsonObject) value2);
-        } else if (value1 instanceof JsonArray && value2 instanceof JsonArray) {
-            return jsonEqual((JsonArray) value1, (JsonArray) value2);
-        }
-        return value1.equals(value2);
-    });
-}
 
-public static boolean jsonEqual(JsonArray array1, JsonArray array2) {
-    if (array1 == null || array2 == null) {
-        return array1 == null && array2 == null;
-    } else if (array1.equals(array2)) {
-        return true;
-    } else if (array1.size() != array2.size()) {
-        return false;
+    public static boolean jsonEqual(JsonObject object1, JsonObject object2) {
+        if (object1 == null || object2 == null) {
+            return object1 == null && object2 == null;
+        } else if (object1.equals(object2)) {
+            return true;
+        } else if (object1.size() != object2.size()) {
+            return false;
+        }
+        return object1.stream().allMatch(entry -> {
+            String key = entry.getKey();
+            Object value1 = entry.getValue();
+            Object value2 = object2.getValue(key);
+            if (value1 == null || value2 == null) {
+                return value1 == null && value2 == null;
+            } else if (value1 instanceof JsonObject && value2 instanceof JsonObject) {
+                return jsonEqual((JsonObject) value1, (JsonObject) value2);
+            } else if (value1 instanceof JsonArray && value2 instanceof JsonArray) {
+                return jsonEqual((JsonArray) value1, (JsonArray) value2);
+            }
+            return value1.equals(value2);
+        });
     }
-    return Stream.concat(array1.stream(), array2.stream()).distinct().allMatch(item1 -> {
-        long count1 = array1.stream()
-                .filter(item2 -> jsonEqual(item1, item2))
-                .count();
-        long count2 = array2.stream()
+
+    public static boolean jsonEqual(JsonArray array1, JsonArray array2) {
+        if (array1 == null || array2 == null) {
+            return array1 == null && array2 == null;
+        } else if (array1.equals(array2)) {
+            return true;
+        } else if (array1.size() != array2.size()) {
+            return false;
+        }
+        List<Object> items1 = new ArrayList<>(array1.size());
+        List<Object> items2 = new ArrayList<>(array2.size());
+        array1.forEach(items1::add);
+        array2.forEach(items2::add);
+        // Equal items share a structural hash, so the items only need to be counted
+        // against the items of their own bucket
+        Map<Integer, List<Object>> buckets1 = bucketByHash(items1);
+        Map<Integer, List<Object>> buckets2 = bucketByHash(items2);
+        if (!buckets1.keySet().equals(buckets2.keySet())) {
+            return false;
+        }
+        return buckets1.entrySet().stream()
+                .allMatch(bucket -> countsEqual(bucket.getValue(), buckets2.get(bucket.getKey())))
+                && nullItemsEqual(items1, items2);
+    }
+
+    /**
+     * Returns true when every distinct item is equal to as many items of the first list as of the second
+     */
+    private static boolean countsEqual(List<Object> items1, List<Object> items2) {
+        return Stream.concat(items1.stream(), items2.stream()).distinct()
+                .allMatch(item -> count(items1, item) == count(items2, item));
+    }
+
+    /**
+     * Counts the items holding a null object value against all items of both lists. Such an item also
+     * matches items with a value under its null keys, which hash differently, so it can not be bucketed.
+     */
+    private static boolean nullItemsEqual(List<Object> items1, List<Object> items2) {
+        return Stream.concat(items1.stream(), items2.stream()).filter(JsonEqual::containsNullValue).distinct()
+                .allMatch(item -> count(items1, item) == count(items2, item));
+    }
+
+    private static long count(List<Object> items, Object item1) {
+        return items.stream()
                 .filter(item2 -> jsonEqual(item1, item2))
                 .count();
-        return count1 == count2;
-    });
-}
+    }
+
+    /**
+     * Buckets the items without null object values by structural hash, the others are left to nullItemsEqual
+     */
+    private static Map<Integer, List<Object>> bucketByHash(List<Object> items) {
+        Map<Integer, List<Object>> buckets = new HashMap<>();
+        for (Object item : items) {
+            if (!containsNullValue(item)) {
+                buckets.computeIfAbsent(structuralHash(item), hash -> new ArrayList<>()).add(item);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns true when the value is or holds an object with a null value
+     */
+    private static boolean containsNullValue(Object value) {
+        if (value instanceof JsonObject) {
+            for (Map.Entry<String, Object> entry : (JsonObject) value) {
+                if (entry.getValue() == null || containsNullValue(entry.getValue())) {
+                    return true;
+                }
+            }
+        } else if (value instanceof JsonArray) {
+            for (Object item : (JsonArray) value) {
+                if (containsNullValue(item)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-private static boolean jsonEqual(Object object1, Object object2) {
-    if (object1 instanceof JsonObject && object2 instanceof JsonObject) {
-        return jsonEqual((JsonObject) object1, (JsonObject) object2);
-    } else if (object1 instanceof JsonArray && object2 instanceof JsonArray) {
-        return jsonEqual((JsonArray) object1, (JsonArray) object2);
-    } else {
-        return Objects.equals(object1, object2);
+    /**
+     * Order insensitive hash of a json value, equal values always share a hash.
+     * Numbers hash by their double value and null object values are skipped, so for
+     * items without null object values the hash is never stricter than jsonEqual.
+     */
+    static int structuralHash(Object value) {
+        if (value instanceof JsonObject) {
+            int hash = 0;
+            for (Map.Entry<String, Object> entry : (JsonObject) value) {
+                if (entry.getValue() != null) {
+                    hash += mix(entry.getKey().hashCode() * 31 + structuralHash(entry.getValue()));
+                }
+            }
+            return mix(hash + ((JsonObject) value).size());
+        } else if (value instanceof JsonArray) {
+            int hash = 0;
+            for (Object item : (JsonArray) value) {
+                hash += mix(structuralHash(item));
+            }
+            return mix(hash ^ ~((JsonArray) value).size());
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            return number == 0 ? 0 : Double.hashCode(number);
+        } else if (value instanceof CharSequence || value instanceof Boolean) {
+            return value.toString().hashCode();
+        }
+        return 0;
     }
-}
\ No newline at end of file
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    static boolean jsonEqual(Object object1, Object object2) {
+        if (object1 instanceof JsonObject && object2 instanceof JsonObject) {
+            return jsonEqual((JsonObject) object1, (JsonObject) object2);
+        } else if (object1 instanceof JsonArray && object2 instanceof JsonArray) {
+            return jsonEqual((JsonArray) object1, (JsonArray) object2);
+        } else {
+            return Objects.equals(object1, object2);
+        }
+    }
+
+    /**
+     * Parallel jsonEqual, the children of every object and array are compared as tasks on the pool and
+     * members and items above the threshold are split across it. A mismatch cancels the tasks of the
+     * object or array it was found in that have not finished. The pool is the caller's, so many comparisons
+     * can share one, for example ForkJoinPool.commonPool().
+     */
+    public static boolean jsonEqual(JsonObject object1, JsonObject object2, ForkJoinPool pool) {
+        if (object1 == null || object2 == null) {
+            return object1 == null && object2 == null;
+        }
+        return pool.invoke(new ValueTask(object1, object2, new Cancellation(null)));
+    }
+
+    public static boolean jsonEqual(JsonArray array1, JsonArray array2, ForkJoinPool pool) {
+        if (array1 == null || array2 == null) {
+            return array1 == null && array2 == null;
+        }
+        return pool.invoke(new ValueTask(array1, array2, new Cancellation(null)));
+    }
+
+    /**
+     * Cancellation of the comparison of one object or array, also set once the comparison it is part of is
+     */
+    private static final class Cancellation {
+
+        private final Cancellation parent;
+        private volatile boolean cancelled;
+
+        private Cancellation(Cancellation parent) {
+            this.parent = parent;
+        }
+
+        boolean isCancelled() {
+            for (Cancellation cancellation = this; cancellation != null; cancellation = cancellation.parent) {
+                if (cancellation.cancelled) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Compares two values, recursing into objects and arrays as subtasks
+     */
+    private static final class ValueTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Object value1;
+        private final transient Object value2;
+        private final transient Cancellation cancellation;
+
+        private ValueTask(Object value1, Object value2, Cancellation cancellation) {
+            this.value1 = value1;
+            this.value2 = value2;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        protected Boolean compute() {
+            boolean equal;
+            if (cancellation.isCancelled()) {
+                return false;
+            } else if (value1 instanceof JsonObject && value2 instanceof JsonObject) {
+                equal = objectsEqual((JsonObject) value1, (JsonObject) value2);
+            } else if (value1 instanceof JsonArray && value2 instanceof JsonArray
+                    && ((JsonArray) value1).size() > PARALLEL_THRESHOLD) {
+                equal = arraysEqual((JsonArray) value1, (JsonArray) value2);
+            } else {
+                equal = jsonEqual(value1, value2);
+            }
+            if (!equal) {
+                cancellation.cancel();
+            }
+            return equal;
+        }
+
+        private boolean objectsEqual(JsonObject object1, JsonObject object2) {
+            if (object1.size() != object2.size()) {
+                return false;
+            }
+            // The members get their own cancellation, a mismatch among them may still be equal by the
+            // deep equals jsonEqual falls back to, which is only walked once the members differ
+            Cancellation members = new Cancellation(cancellation);
+            List<String> keys = new ArrayList<>(object1.fieldNames());
+            boolean equal = new RangeTask(keys.size(), members, i -> {
+                String key = keys.get(i);
+                return new ValueTask(object1.getValue(key), object2.getValue(key), members).compute();
+            }).compute();
+            return equal || !cancellation.isCancelled() && object1.equals(object2);
+        }
+
+        private boolean arraysEqual(JsonArray array1, JsonArray array2) {
+            if (array1.size() != array2.size()) {
+                return false;
+            }
+            return itemsEqual(array1, array2) || !cancellation.isCancelled() && array1.equals(array2);
+        }
+
+        private boolean itemsEqual(JsonArray array1, JsonArray array2) {
+            List<Object> items1 = new ArrayList<>(array1.size());
+            List<Object> items2 = new ArrayList<>(array2.size());
+            array1.forEach(items1::add);
+            array2.forEach(items2::add);
+            // Hash in parallel, then bucket the items and count every bucket in parallel.
+            // Items holding a null object value get no hash and are counted against all items after that.
+            Cancellation items = new Cancellation(cancellation);
+            boolean[] nulls1 = new boolean[items1.size()];
+            boolean[] nulls2 = new boolean[items2.size()];
+            int[] hashes1 = new int[items1.size()];
+            int[] hashes2 = new int[items2.size()];
+            boolean hashed = new RangeTask(hashes1.length, items, i -> {
+                nulls1[i] = containsNullValue(items1.get(i));
+                nulls2[i] = containsNullValue(items2.get(i));
+                hashes1[i] = nulls1[i] ? 0 : structuralHash(items1.get(i));
+                hashes2[i] = nulls2[i] ? 0 : structuralHash(items2.get(i));
+                return true;
+            }).compute();
+            if (!hashed) {
+                return false;
+            }
+            Map<Integer, Bucket> buckets = new HashMap<>();
+            Set<Object> nullItems = new LinkedHashSet<>();
+            for (int i = 0; i < hashes1.length; i++) {
+                if (nulls1[i]) {
+                    nullItems.add(items1.get(i));
+                } else {
+                    buckets.computeIfAbsent(hashes1[i], hash -> new Bucket()).items1.add(items1.get(i));
+                }
+                if (nulls2[i]) {
+                    nullItems.add(items2.get(i));
+                } else {
+                    buckets.computeIfAbsent(hashes2[i], hash -> new Bucket()).items2.add(items2.get(i));
+                }
+            }
+            List<Bucket> bucketList = new ArrayList<>(buckets.values());
+            List<Object> nullItemList = new ArrayList<>(nullItems);
+            return new RangeTask(bucketList.size(), items, i -> {
+                Bucket bucket = bucketList.get(i);
+                return countsEqual(bucket.items1, bucket.items2);
+            }).compute() && new RangeTask(nullItemList.size(), items, i -> {
+                Object item = nullItemList.get(i);
+                return count(items1, item) == count(items2, item);
+            }).compute();
+        }
+    }
+
+    /**
+     * Items of both arrays sharing a structural hash
+     */
+    private static final class Bucket {
+
+        private final List<Object> items1 = new ArrayList<>();
+        private final List<Object> items2 = new ArrayList<>();
+    }
+
+    /**
+     * Checks a predicate for every index of a range, forking halves until the range is small enough
+     */
+    private static final class RangeTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final transient Cancellation cancellation;
+        private final transient IntPredicate predicate;
+
+        private RangeTask(int size, Cancellation cancellation, IntPredicate predicate) {
+            this(0, size, cancellation, predicate);
+        }
+
+        private RangeTask(int from, int to, Cancellation cancellation, IntPredicate predicate) {
+            this.from = from;
+            this.to = to;
+            this.cancellation = cancellation;
+            this.predicate = predicate;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                RangeTask right = new RangeTask(middle, to, cancellation, predicate);
+                right.fork();
+                boolean equal = new RangeTask(from, middle, cancellation, predicate).compute();
+                // After a mismatch on the left the forked half stops at its next check
+                return right.join() && equal;
+            }
+            for (int i = from; i < to; i++) {
+                if (cancellation.isCancelled() || !predicate.test(i)) {
+                    cancellation.cancel();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
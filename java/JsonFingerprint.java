@@ -0,0 +1,425 @@
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 128 bit structural fingerprint of a json value using the same semantics as JsonEqual,
+ * object keys and array items are combined order insensitively. Equal documents without
+ * null object values always have equal fingerprints, so different fingerprints prove such
+ * documents are not equal. A null object value also matches a key holding a value in
+ * jsonEqual, which no fingerprint can follow, see {@link #hasNullValues()}.
+ * <p>
+ * Fingerprints of objects and arrays are cached by identity until the value is garbage
+ * collected. A cached tree must only be mutated through {@link Document} or be passed to
+ * {@link #invalidate(Object)} afterwards, otherwise its fingerprint is stale. JsonEqual
+ * never reads the cache, comparing fingerprinted documents is opted into through
+ * {@link Document#jsonEqual(Document)}.
+ */
+public final class JsonFingerprint {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long OBJECT_SEED = 0x9e3779b97f4a7c15L;
+    private static final long ARRAY_SEED = 0xc2b2ae3d27d4eb4fL;
+    private static final long STRING_SEED = 0x165667b19e3779f9L;
+    private static final long NUMBER_SEED = 0x27d4eb2f165667c5L;
+    private static final long TRUE_SEED = 0x61c8864680b583ebL;
+    private static final long FALSE_SEED = 0x7a646e4d9a6b1f43L;
+    private static final long NULL_SEED = 0x2545f4914f6cdd1dL;
+    private static final long OTHER_SEED = 0x5851f42d4c957f2dL;
+
+    private static final IdentityCache CACHE = new IdentityCache();
+
+    private final long high;
+    private final long low;
+    private final boolean nullValues;
+
+    private JsonFingerprint(long high, long low, boolean nullValues) {
+        this.high = high;
+        this.low = low;
+        this.nullValues = nullValues;
+    }
+
+    /**
+     * Get the fingerprint of an object, computing only the subtrees that are not cached
+     */
+    public static JsonFingerprint of(JsonObject object) {
+        JsonFingerprint fingerprint = CACHE.get(object);
+        if (fingerprint == null) {
+            Builder builder = new Builder(true);
+            for (Map.Entry<String, Object> entry : object) {
+                builder.key(entry.getKey());
+                append(builder, entry.getValue());
+            }
+            fingerprint = builder.build();
+            CACHE.put(object, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Get the fingerprint of an array, computing only the subtrees that are not cached
+     */
+    public static JsonFingerprint of(JsonArray array) {
+        JsonFingerprint fingerprint = CACHE.get(array);
+        if (fingerprint == null) {
+            Builder builder = new Builder(false);
+            for (Object item : array) {
+                append(builder, item);
+            }
+            fingerprint = builder.build();
+            CACHE.put(array, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Get the cached fingerprint of an object or array without computing it, null if there is none
+     */
+    public static JsonFingerprint cached(Object value) {
+        return value == null ? null : CACHE.get(value);
+    }
+
+    /**
+     * Drop the cached fingerprint of a value that was mutated directly
+     */
+    public static void invalidate(Object value) {
+        CACHE.remove(value);
+    }
+
+    private static void append(Builder builder, Object value) {
+        if (value instanceof JsonObject) {
+            builder.child(of((JsonObject) value));
+        } else if (value instanceof JsonArray) {
+            builder.child(of((JsonArray) value));
+        } else if (value == null) {
+            builder.nullValue();
+        } else if (value instanceof Number) {
+            builder.number(((Number) value).doubleValue());
+        } else if (value instanceof CharSequence) {
+            builder.string((CharSequence) value);
+        } else if (value instanceof Boolean) {
+            builder.bool((Boolean) value);
+        } else {
+            builder.other();
+        }
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Returns true if the value holds an object with a null value anywhere, such fingerprints can
+     * differ for documents jsonEqual finds equal
+     */
+    public boolean hasNullValues() {
+        return nullValues;
+    }
+
+    /**
+     * Returns true if the fingerprints prove the documents they belong to are not equal
+     */
+    public boolean provesUnequal(JsonFingerprint other) {
+        return !nullValues && !other.nullValues && !equals(other);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof JsonFingerprint)) {
+            return false;
+        }
+        JsonFingerprint that = (JsonFingerprint) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ low);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+
+    private static long fmix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Accumulates the fingerprint of one object or array from its members in any order.
+     * Object members are added as a key followed by a value, a null object value only
+     * counts towards the size since JsonEqual treats it as missing.
+     */
+    static final class Builder {
+
+        private final boolean object;
+        private long sumHigh;
+        private long sumLow;
+        private int size;
+        private boolean nullValues;
+        private long keyHigh;
+        private long keyLow;
+        private long scratchHigh;
+        private long scratchLow;
+
+        Builder(boolean object) {
+            this.object = object;
+        }
+
+        void key(CharSequence key) {
+            hash(key);
+            keyHigh = scratchHigh;
+            keyLow = scratchLow;
+        }
+
+        void key(char[] chars, int offset, int length) {
+            hash(chars, offset, length);
+            keyHigh = scratchHigh;
+            keyLow = scratchLow;
+        }
+
+        void string(CharSequence value) {
+            hash(value);
+            add(scratchHigh ^ STRING_SEED, scratchLow + STRING_SEED);
+        }
+
+        void string(char[] chars, int offset, int length) {
+            hash(chars, offset, length);
+            add(scratchHigh ^ STRING_SEED, scratchLow + STRING_SEED);
+        }
+
+        void number(double value) {
+            long bits = Double.doubleToLongBits(value == 0 ? 0.0 : value);
+            add(fmix(bits ^ NUMBER_SEED), fmix(bits * C1 + NUMBER_SEED));
+        }
+
+        void bool(boolean value) {
+            add(value ? TRUE_SEED : FALSE_SEED, value ? ~TRUE_SEED : ~FALSE_SEED);
+        }
+
+        void other() {
+            add(OTHER_SEED, ~OTHER_SEED);
+        }
+
+        void nullValue() {
+            if (object) {
+                nullValues = true;
+                size++;
+            } else {
+                add(NULL_SEED, ~NULL_SEED);
+            }
+        }
+
+        void child(JsonFingerprint fingerprint) {
+            nullValues |= fingerprint.nullValues;
+            add(fingerprint.high, fingerprint.low);
+        }
+
+        private void hash(CharSequence chars) {
+            long high = STRING_SEED;
+            long low = ~STRING_SEED;
+            for (int i = 0; i < chars.length(); i++) {
+                high = Long.rotateLeft(high ^ chars.charAt(i) * C1, 31) * C2;
+                low = Long.rotateLeft(low ^ chars.charAt(i) * C2, 27) * C1;
+            }
+            scratchHigh = fmix(high ^ chars.length());
+            scratchLow = fmix(low + chars.length());
+        }
+
+        private void hash(char[] chars, int offset, int length) {
+            long high = STRING_SEED;
+            long low = ~STRING_SEED;
+            for (int i = offset; i < offset + length; i++) {
+                high = Long.rotateLeft(high ^ chars[i] * C1, 31) * C2;
+                low = Long.rotateLeft(low ^ chars[i] * C2, 27) * C1;
+            }
+            scratchHigh = fmix(high ^ length);
+            scratchLow = fmix(low + length);
+        }
+
+        private void add(long high, long low) {
+            size++;
+            if (object) {
+                sumHigh += fmix(keyHigh * C1 + high);
+                sumLow += fmix(keyLow * C2 + low);
+            } else {
+                sumHigh += fmix(high);
+                sumLow += fmix(low ^ ARRAY_SEED);
+            }
+        }
+
+        JsonFingerprint build() {
+            long seed = object ? OBJECT_SEED : ARRAY_SEED;
+            return new JsonFingerprint(fmix(sumHigh ^ seed ^ size * C1), fmix(sumLow + seed + size * C2), nullValues);
+        }
+    }
+
+    /**
+     * Wrapper that mutates a document by JSON Pointer and only invalidates the containers
+     * on the mutated path, so the next fingerprint recomputes just that path while every
+     * untouched subtree is served from the cache.
+     */
+    public static final class Document {
+
+        private final JsonObject root;
+
+        public Document(JsonObject root) {
+            this.root = root;
+        }
+
+        public JsonObject getRoot() {
+            return root;
+        }
+
+        public JsonFingerprint fingerprint() {
+            return of(root);
+        }
+
+        /**
+         * jsonEqual of both roots, documents whose fingerprints prove them unequal are rejected without a walk
+         */
+        public boolean jsonEqual(Document other) {
+            return !fingerprint().provesUnequal(other.fingerprint()) && JsonEqual.jsonEqual(root, other.root);
+        }
+
+        /**
+         * Set the value at the pointer, "-" as the last array index appends
+         */
+        public Document put(String pointer, Object value) {
+            List<String> fields = parsePointer(pointer);
+            String last = fields.get(fields.size() - 1);
+            Object parent = resolveParent(fields);
+            if (parent instanceof JsonObject) {
+                ((JsonObject) parent).put(last, value);
+            } else if ("-".equals(last)) {
+                ((JsonArray) parent).add(value);
+            } else {
+                ((JsonArray) parent).set(Integer.parseInt(last), value);
+            }
+            return this;
+        }
+
+        /**
+         * Remove the value at the pointer
+         */
+        public Document remove(String pointer) {
+            List<String> fields = parsePointer(pointer);
+            String last = fields.get(fields.size() - 1);
+            Object parent = resolveParent(fields);
+            if (parent instanceof JsonObject) {
+                ((JsonObject) parent).remove(last);
+            } else {
+                ((JsonArray) parent).remove(Integer.parseInt(last));
+            }
+            return this;
+        }
+
+        /**
+         * Walk to the container holding the last field, invalidating every container on the way
+         */
+        private Object resolveParent(List<String> fields) {
+            Object current = root;
+            invalidate(current);
+            for (int i = 0; i < fields.size() - 1; i++) {
+                String field = fields.get(i);
+                if (current instanceof JsonObject) {
+                    current = ((JsonObject) current).getValue(field);
+                } else if (current instanceof JsonArray) {
+                    current = ((JsonArray) current).getValue(Integer.parseInt(field));
+                } else {
+                    current = null;
+                }
+                if (!(current instanceof JsonObject) && !(current instanceof JsonArray)) {
+                    throw new IllegalArgumentException("no container at " + String.join("/", fields.subList(0, i + 1)));
+                }
+                invalidate(current);
+            }
+            return current;
+        }
+
+        private static List<String> parsePointer(String pointer) {
+            if (pointer == null || !pointer.startsWith("/")) {
+                throw new IllegalArgumentException("invalid json pointer " + pointer);
+            }
+            List<String> fields = new ArrayList<>();
+            for (String field : pointer.substring(1).split("/", -1)) {
+                fields.add(field.replace("~1", "/").replace("~0", "~"));
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Concurrent map keyed by object identity that does not keep its keys alive
+     */
+    private static final class IdentityCache {
+
+        private final Map<IdentityKey, JsonFingerprint> map = new ConcurrentHashMap<>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+        JsonFingerprint get(Object value) {
+            expunge();
+            return map.get(new IdentityKey(value, null));
+        }
+
+        void put(Object value, JsonFingerprint fingerprint) {
+            expunge();
+            map.put(new IdentityKey(value, queue), fingerprint);
+        }
+
+        void remove(Object value) {
+            map.remove(new IdentityKey(value, null));
+        }
+
+        private void expunge() {
+            Object key;
+            while ((key = queue.poll()) != null) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static final class IdentityKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof IdentityKey)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compares json documents that are too large to parse into a JsonObject.
+ * Each document is read once with a pull parser into a canonical form, where the keys of every
+ * object and the items of every array are sorted by their encoding, and the two canonical forms
+ * are compared byte by byte. Containers that do not fit the memory budget are sorted in runs
+ * spilled to temporary files and merged on disk, so memory stays bounded no matter how large the
+ * document or its arrays are. A spilled container keeps the first bytes of its encoding in memory,
+ * so sorting and merging only read its file when those bytes tie.
+ * <p>
+ * This is an exact comparison, not JsonEqual.jsonEqual. Objects are compared by key and arrays as
+ * multisets, numbers by their numeric value so 1, 1.0 and 1e0 are equal, and null is a value like
+ * any other, so it matches neither a missing key nor a key holding a value.
+ * <p>
+ * The JsonFingerprint of each document is folded in the same pass and only used to reject
+ * unequal documents before the canonical forms are compared.
+ */
+public class JsonStreamEqual {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final long MAX_MAPPED_REGION = 1L << 30;
+    /**
+     * Bytes of canonical form held in memory per document before containers are spilled to disk
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private static final byte OBJECT = 'o';
+    private static final byte ARRAY = 'a';
+    private static final byte END = 'e';
+    private static final byte STRING = 's';
+    private static final byte NUMBER = 'd';
+    private static final byte TRUE = 't';
+    private static final byte FALSE = 'f';
+    private static final byte NULL = 'n';
+    private static final byte OTHER = 'x';
+    /**
+     * Bytes at the start of a spilled container kept in memory to sort it without reading its file
+     */
+    private static final int PREFIX_SIZE = 1024;
+
+    private JsonStreamEqual() {
+    }
+
+    public static boolean exactEqual(InputStream document1, InputStream document2) throws IOException {
+        return exactEqual(document1, document2, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param memoryBudget bytes of canonical form held in memory per document
+     */
+    public static boolean exactEqual(InputStream document1, InputStream document2, long memoryBudget)
+            throws IOException {
+        try (CanonicalForm form1 = new CanonicalForm(memoryBudget);
+             CanonicalForm form2 = new CanonicalForm(memoryBudget)) {
+            form1.read(document1);
+            form2.read(document2);
+            return !form1.fingerprint.provesUnequal(form2.fingerprint) && compare(form1.root, form2.root) == 0;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static boolean exactEqual(ReadableByteChannel document1, ReadableByteChannel document2) throws IOException {
+        return exactEqual(Channels.newInputStream(document1), Channels.newInputStream(document2));
+    }
+
+    /**
+     * Compare two files, both are read through memory mapped regions
+     */
+    public static boolean exactEqual(Path document1, Path document2) throws IOException {
+        try (FileChannel channel1 = FileChannel.open(document1, StandardOpenOption.READ);
+             InputStream inputStream1 = new MappedInputStream(channel1);
+             FileChannel channel2 = FileChannel.open(document2, StandardOpenOption.READ);
+             InputStream inputStream2 = new MappedInputStream(channel2)) {
+            return exactEqual(inputStream1, inputStream2);
+        }
+    }
+
+    public static JsonFingerprint fingerprint(ReadableByteChannel document) throws IOException {
+        return fingerprint(Channels.newInputStream(document));
+    }
+
+    public static JsonFingerprint fingerprint(Path document) throws IOException {
+        try (FileChannel channel = FileChannel.open(document, StandardOpenOption.READ);
+             InputStream inputStream = new MappedInputStream(channel)) {
+            return fingerprint(inputStream);
+        }
+    }
+
+    /**
+     * Get the fingerprint of the json object or array in the stream,
+     * equal to JsonFingerprint.of for the same document parsed into memory
+     */
+    public static JsonFingerprint fingerprint(InputStream document) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(document)) {
+            Deque<JsonFingerprint.Builder> stack = new ArrayDeque<>();
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                JsonFingerprint.Builder builder = stack.peek();
+                switch (token) {
+                    case START_OBJECT:
+                        stack.push(new JsonFingerprint.Builder(true));
+                        break;
+                    case START_ARRAY:
+                        stack.push(new JsonFingerprint.Builder(false));
+                        break;
+                    case END_OBJECT:
+                    case END_ARRAY:
+                        JsonFingerprint fingerprint = stack.pop().build();
+                        if (stack.isEmpty()) {
+                            return fingerprint;
+                        }
+                        stack.peek().child(fingerprint);
+                        break;
+                    case FIELD_NAME:
+                        builder.key(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                        break;
+                    case VALUE_STRING:
+                        requireContainer(builder, parser);
+                        builder.string(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                        break;
+                    case VALUE_NUMBER_INT:
+                    case VALUE_NUMBER_FLOAT:
+                        requireContainer(builder, parser);
+                        builder.number(parser.getDoubleValue());
+                        break;
+                    case VALUE_TRUE:
+                    case VALUE_FALSE:
+                        requireContainer(builder, parser);
+                        builder.bool(token == JsonToken.VALUE_TRUE);
+                        break;
+                    case VALUE_NULL:
+                        requireContainer(builder, parser);
+                        builder.nullValue();
+                        break;
+                    default:
+                        requireContainer(builder, parser);
+                        builder.other();
+                }
+            }
+            throw new IOException("json document ended before its root object or array was closed");
+        }
+    }
+
+    private static void requireContainer(JsonFingerprint.Builder builder, JsonParser parser) throws IOException {
+        if (builder == null) {
+            throw new IOException("expected a json object or array at " + parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * Order of two encodings by their unsigned bytes. The bytes held in memory decide unless they tie up to
+     * the end of the prefix of a spilled container, only then are its files read.
+     */
+    private static int compare(Encoding encoding1, Encoding encoding2) {
+        if (encoding1.file == null && encoding2.file == null) {
+            return Arrays.compareUnsigned(encoding1.head, encoding2.head);
+        }
+        int known1 = encoding1.head.length + encoding1.prefix.length;
+        int known2 = encoding2.head.length + encoding2.prefix.length;
+        int common = Math.min(known1, known2);
+        for (int i = 0; i < common; i++) {
+            int byte1 = encoding1.byteAt(i);
+            int byte2 = encoding2.byteAt(i);
+            if (byte1 != byte2) {
+                return Integer.compare(byte1, byte2);
+            }
+        }
+        // An encoding known in full that ends first sorts first
+        if (encoding1.isKnown() && known1 == common) {
+            return encoding2.isKnown() && known2 == common ? 0 : -1;
+        } else if (encoding2.isKnown() && known2 == common) {
+            return 1;
+        }
+        try (InputStream content1 = encoding1.open(); InputStream content2 = encoding2.open()) {
+            while (true) {
+                int byte1 = content1.read();
+                int byte2 = content2.read();
+                if (byte1 != byte2 || byte1 < 0) {
+                    return Integer.compare(byte1, byte2);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Canonical encoding of a value, the head bytes followed by the content of the file if there is one.
+     * Containers too large to be held in memory are written to a file, the first bytes of the file are
+     * kept as the prefix.
+     */
+    private static final class Encoding {
+
+        private static final byte[] NONE = new byte[0];
+
+        private final byte[] head;
+        private final Path file;
+        private final byte[] prefix;
+
+        private Encoding(byte[] head) {
+            this(head, null, NONE);
+        }
+
+        private Encoding(byte[] head, Path file, byte[] prefix) {
+            this.head = head;
+            this.file = file;
+            this.prefix = prefix;
+        }
+
+        /**
+         * Unsigned byte at an index of the head followed by the prefix
+         */
+        private int byteAt(int index) {
+            return (index < head.length ? head[index] : prefix[index - head.length]) & 0xff;
+        }
+
+        /**
+         * Whether the head and the prefix hold the whole encoding
+         */
+        private boolean isKnown() {
+            return file == null || prefix.length < PREFIX_SIZE;
+        }
+
+        private InputStream open() throws IOException {
+            InputStream headStream = new ByteArrayInputStream(head);
+            if (file == null) {
+                return headStream;
+            }
+            return new SequenceInputStream(headStream, new BufferedInputStream(Files.newInputStream(file)));
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            out.write(head);
+            if (file != null) {
+                Files.copy(file, out);
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Object or array being read, holding the encodings of its members that were not spilled yet
+     */
+    private static final class Frame {
+
+        private final boolean object;
+        private final List<Encoding> members = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        private int size;
+        private long bytes;
+        private byte[] key;
+        private boolean spilled;
+
+        private Frame(boolean object) {
+            this.object = object;
+        }
+    }
+
+    /**
+     * Reads a document into its canonical form and fingerprint, deleting its temporary files on close
+     */
+    private static final class CanonicalForm implements Closeable {
+
+        private final long memoryBudget;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private final List<Path> files = new ArrayList<>();
+        private long held;
+        private Encoding root;
+        private JsonFingerprint fingerprint;
+
+        private CanonicalForm(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+        }
+
+        private void read(InputStream document) throws IOException {
+            try (JsonParser parser = JSON_FACTORY.createParser(document)) {
+                Deque<JsonFingerprint.Builder> stack = new ArrayDeque<>();
+                JsonToken token;
+                while ((token = parser.nextToken()) != null) {
+                    JsonFingerprint.Builder builder = stack.peek();
+                    switch (token) {
+                        case START_OBJECT:
+                        case START_ARRAY:
+                            stack.push(new JsonFingerprint.Builder(token == JsonToken.START_OBJECT));
+                            frames.push(new Frame(token == JsonToken.START_OBJECT));
+                            break;
+                        case END_OBJECT:
+                        case END_ARRAY:
+                            JsonFingerprint fingerprint = stack.pop().build();
+                            Encoding encoding = finish(frames.pop());
+                            if (stack.isEmpty()) {
+                                this.fingerprint = fingerprint;
+                                this.root = encoding;
+                                return;
+                            }
+                            stack.peek().child(fingerprint);
+                            add(encoding);
+                            break;
+                        case FIELD_NAME:
+                            builder.key(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                            frames.peek().key = encode(STRING, parser.getText());
+                            break;
+                        case VALUE_STRING:
+                            requireContainer(builder, parser);
+                            builder.string(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                            add(new Encoding(encode(STRING, parser.getText())));
+                            break;
+                        case VALUE_NUMBER_INT:
+                        case VALUE_NUMBER_FLOAT:
+                            requireContainer(builder, parser);
+                            builder.number(parser.getDoubleValue());
+                            // Without trailing zeros every numeric value has a single decimal representation
+                            String number = new BigDecimal(parser.getText()).stripTrailingZeros().toString();
+                            add(new Encoding(encode(NUMBER, number)));
+                            break;
+                        case VALUE_TRUE:
+                        case VALUE_FALSE:
+                            requireContainer(builder, parser);
+                            builder.bool(token == JsonToken.VALUE_TRUE);
+                            add(new Encoding(new byte[]{token == JsonToken.VALUE_TRUE ? TRUE : FALSE}));
+                            break;
+                        case VALUE_NULL:
+                            requireContainer(builder, parser);
+                            builder.nullValue();
+                            add(new Encoding(new byte[]{NULL}));
+                            break;
+                        default:
+                            requireContainer(builder, parser);
+                            builder.other();
+                            add(new Encoding(new byte[]{OTHER}));
+                    }
+                }
+                throw new IOException("json document ended before its root object or array was closed");
+            }
+        }
+
+        /**
+         * Add a value to the open container, an object member is encoded as its key followed by the value
+         */
+        private void add(Encoding value) throws IOException {
+            Frame frame = frames.peek();
+            Encoding member = value;
+            if (frame.object) {
+                byte[] head = Arrays.copyOf(frame.key, frame.key.length + value.head.length);
+                System.arraycopy(value.head, 0, head, frame.key.length, value.head.length);
+                member = new Encoding(head, value.file, value.prefix);
+            }
+            frame.size++;
+            frame.members.add(member);
+            frame.bytes += member.head.length + member.prefix.length;
+            held += member.head.length + member.prefix.length;
+            if (member.file != null) {
+                frame.spilled = true;
+            }
+            if (held > memoryBudget) {
+                // Spill the container holding the most, the open containers are few
+                Frame largest = frames.stream().max(Comparator.comparingLong(f -> f.bytes)).orElse(frame);
+                spill(largest);
+            }
+        }
+
+        /**
+         * Write the sorted members of a container to a run file
+         */
+        private void spill(Frame frame) throws IOException {
+            frame.members.sort(JsonStreamEqual::compare);
+            Path run = createFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+                for (Encoding member : frame.members) {
+                    out.writeInt(member.head.length);
+                    out.write(member.head);
+                    out.writeUTF(member.file == null ? "" : member.file.toString());
+                    out.writeInt(member.prefix.length);
+                    out.write(member.prefix);
+                }
+            }
+            frame.runs.add(run);
+            frame.members.clear();
+            held -= frame.bytes;
+            frame.bytes = 0;
+            frame.spilled = true;
+        }
+
+        /**
+         * Encode a closed container, in memory unless it was spilled or holds a spilled container
+         */
+        private Encoding finish(Frame frame) throws IOException {
+            frame.members.sort(JsonStreamEqual::compare);
+            held -= frame.bytes;
+            if (!frame.spilled) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) frame.bytes + 6);
+                writeHeader(new DataOutputStream(out), frame);
+                for (Encoding member : frame.members) {
+                    out.write(member.head);
+                }
+                out.write(END);
+                return new Encoding(out.toByteArray());
+            }
+            Path file = createFile();
+            PrefixOutputStream prefix = new PrefixOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            try (DataOutputStream out = new DataOutputStream(prefix)) {
+                writeHeader(out, frame);
+                merge(frame, out);
+                out.write(END);
+            }
+            return new Encoding(Encoding.NONE, file, prefix.toByteArray());
+        }
+
+        private static void writeHeader(DataOutputStream out, Frame frame) throws IOException {
+            out.write(frame.object ? OBJECT : ARRAY);
+            out.writeInt(frame.size);
+        }
+
+        /**
+         * Merge the runs and the members still in memory of a container in order
+         */
+        private void merge(Frame frame, OutputStream out) throws IOException {
+            List<RunReader> readers = new ArrayList<>();
+            try {
+                PriorityQueue<RunReader> queue = new PriorityQueue<>((reader1, reader2) ->
+                        compare(reader1.current, reader2.current));
+                for (Path run : frame.runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                RunReader memory = new RunReader(frame.members.iterator());
+                if (memory.next()) {
+                    queue.add(memory);
+                }
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    reader.current.writeTo(out);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+            } finally {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+                for (Path run : frame.runs) {
+                    Files.deleteIfExists(run);
+                }
+            }
+        }
+
+        private Path createFile() throws IOException {
+            Path file = Files.createTempFile("json-stream-equal-", ".run");
+            files.add(file);
+            return file;
+        }
+
+        private static byte[] encode(byte type, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = new byte[bytes.length + 5];
+            encoded[0] = type;
+            encoded[1] = (byte) (bytes.length >>> 24);
+            encoded[2] = (byte) (bytes.length >>> 16);
+            encoded[3] = (byte) (bytes.length >>> 8);
+            encoded[4] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, encoded, 5, bytes.length);
+            return encoded;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the members of a run file, or of the members held in memory, in order
+     */
+    private static final class RunReader implements Closeable {
+
+        private final DataInputStream in;
+        private final Iterator<Encoding> members;
+        private Encoding current;
+
+        private RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+            this.members = null;
+        }
+
+        private RunReader(Iterator<Encoding> members) {
+            this.in = null;
+            this.members = members;
+        }
+
+        private boolean next() throws IOException {
+            if (members != null) {
+                current = members.hasNext() ? members.next() : null;
+                return current != null;
+            }
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            byte[] head = new byte[length];
+            in.readFully(head);
+            String file = in.readUTF();
+            byte[] prefix = new byte[in.readInt()];
+            in.readFully(prefix);
+            current = new Encoding(head, file.isEmpty() ? null : Paths.get(file), prefix);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Passes bytes through to a stream and keeps the first of them as the prefix of a spilled container
+     */
+    private static final class PrefixOutputStream extends FilterOutputStream {
+
+        private final ByteArrayOutputStream prefix = new ByteArrayOutputStream(PREFIX_SIZE);
+
+        private PrefixOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (prefix.size() < PREFIX_SIZE) {
+                prefix.write(b);
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            prefix.write(bytes, offset, Math.min(length, PREFIX_SIZE - prefix.size()));
+            out.write(bytes, offset, length);
+        }
+
+        private byte[] toByteArray() {
+            return prefix.toByteArray();
+        }
+    }
+
+    /**
+     * Reads a file through a sliding window of memory mapped regions
+     */
+    private static final class MappedInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long size;
+        private long position;
+        private MappedByteBuffer buffer;
+
+        private MappedInputStream(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureMapped()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            } else if (!ensureMapped()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        /**
+         * Map the next region once the current one is consumed, returns false at the end of the file
+         */
+        private boolean ensureMapped() throws IOException {
+            if (buffer != null && buffer.hasRemaining()) {
+                return true;
+            } else if (position >= size) {
+                return false;
+            }
+            long regionSize = Math.min(MAX_MAPPED_REGION, size - position);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+            position += regionSize;
+            return true;
+        }
+    }
+}
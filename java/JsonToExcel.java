@@ -1,14 +1,32 @@
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.JsonEventType;
+import io.vertx.core.parsetools.JsonParser;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Slf4j
 public class JsonToExcelUtil {
@@ -18,13 +36,31 @@ public class JsonToExcelUtil {
     public static final String HEADER_RENAME_MAP = "header_rename_map";
     public static final String CELL_STYLE_MAP = "cell_style_map";
     public static final String DEFAULT_CELL_STYLE = "default_cell_style";
+    public static final String HEADER_SAMPLE_SIZE = "header_sample_size";
 
     private static final String ARRAY_MARKER = "[]";
-    private static final String PLACEHOLDER = "<placeholder>";
+    // records read by one task when inferring the headers of a large sheet
+    private static final int HEADER_CHUNK_SIZE = 10_000;
+    // rows laid out by a sheet worker before they are added to the workbook
+    private static final int ROW_BATCH_SIZE = 1_000;
+    // records held back to size the columns of a streamed sheet without a header sample size
+    private static final int STREAM_SAMPLE_SIZE = 1_000;
+    // bytes read or written at a time when streaming
+    private static final int READ_BUFFER_SIZE = 1 << 16;
 
     private JsonToExcelUtil() {
     }
 
+    /**
+     * Backend the workbook is written with
+     */
+    public enum ExcelWriter {
+        // POI streaming workbook
+        POI,
+        // SpreadsheetML written straight to the zip, without an object per row or cell
+        OOXML
+    }
+
     /**
      * Method to convert json file to Excel file
      *
@@ -33,241 +69,408 @@ public class JsonToExcelUtil {
      *                 - data will be the information below the headers
      *                 - head_rename_map will translate any natual header names to given header names
      *                 - cell_style_map will set the cell color to of the columns that begin with the key
+     *                 - header_sample_size will take the headers from the first records instead of all of them,
+     *                 headers found in later records are appended after the others
      * @return file
      */
     public static byte[] translateJsonToExcel(JsonObject jsonData) throws IOException {
-        try (Workbook workbook = new XSSFWorkbook()) {
-            // iterating over each sheet
-            jsonData.forEach(entry -> {
-                // create the workbook sheet
-                String sheetName = entry.getKey();
-                JsonObject sheetValue = (JsonObject) entry.getValue();
-                log.info("translating sheet name={}", sheetName);
-                Sheet sheet = workbook.createSheet(sheetName);
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            translateJsonToExcel(jsonData, out);
+            return out.toByteArray();
+        }
+    }
 
-                JsonArray sheetData = sheetValue.getJsonArray(DATA);
+    /**
+     * Method to stream json data as an Excel file, see {@link #translateJsonToExcel(JsonObject)}
+     * Sheets are laid out one after the other on the calling thread
+     *
+     * @param jsonData JsonObject containing data for all sheets
+     * @param out      sink the workbook is written to, left open
+     */
+    public static void translateJsonToExcel(JsonObject jsonData, OutputStream out) throws IOException {
+        translateJsonToExcel(jsonData, out, 1);
+    }
 
-                // creating cell style for header to make it bold
-                CellStyle headerStyle = workbook.createCellStyle();
-                Font font = workbook.createFont();
-                font.setBold(true);
-                headerStyle.setFont(font);
+    /**
+     * Method to stream json data as an Excel file with POI, see {@link #translateJsonToExcel(JsonObject, OutputStream, int, ExcelWriter)}
+     */
+    public static void translateJsonToExcel(JsonObject jsonData, OutputStream out, int threads) throws IOException {
+        translateJsonToExcel(jsonData, out, threads, ExcelWriter.POI);
+    }
 
-                // creating the header into the sheet
-                List<String> headers = sheetValue.getValue(HEADERS) instanceof JsonArray
-                        ? sheetValue.getJsonArray(HEADERS).stream().map(Object::toString).collect(Collectors.toList())
-                        : new ArrayList<>();
-                if (headers.isEmpty()) {
-                    sheetData.forEach(jsonNode -> populateHeaderNames((JsonObject) jsonNode, headers, null));
-                }
-                Row header = sheet.createRow(0);
-                int headerIdx = 0;
-
-                for (String headerName : headers) {
-                    Cell cell = header.createCell(headerIdx++);
-                    cell.setCellValue(headerName);
-                    // apply the bold style to headers
-                    cell.setCellStyle(headerStyle);
+    /**
+     * Method to stream json data as an Excel file, see {@link #translateJsonToExcel(JsonObject)}
+     * With more than one thread each sheet is laid out by a worker thread of a pool created for the call, with one
+     * thread the sheets are laid out one after the other on the calling thread. With POI the workers add their rows
+     * to the workbook one batch at a time since POI is not thread safe, the OOXML writer encodes the rows of every
+     * sheet on its worker. Rows are written in a single pass to temporary files, so only the rows being laid out are
+     * held in memory.
+     *
+     * @param jsonData    JsonObject containing data for all sheets
+     * @param out         sink the workbook is written to, left open
+     * @param threads     upper bound of the sheets laid out at the same time
+     * @param excelWriter backend writing the workbook
+     */
+    public static void translateJsonToExcel(JsonObject jsonData, OutputStream out, int threads, ExcelWriter excelWriter)
+            throws IOException {
+        ExecutorService workers = threads > 1 && jsonData.size() > 1
+                ? Executors.newFixedThreadPool(Math.min(threads, jsonData.size())) : null;
+        try (WorkbookWriter workbook = excelWriter == ExcelWriter.OOXML ? new JsonToExcelOoxmlWriter() : new PoiWorkbookWriter()) {
+            try {
+                // iterating over each sheet
+                List<Future<?>> results = new ArrayList<>();
+                for (Map.Entry<String, Object> entry : jsonData) {
+                    String sheetName = entry.getKey();
+                    JsonObject sheetValue = (JsonObject) entry.getValue();
+                    Map<String, IndexedColors> cellFillMap = getCellFillMap(sheetValue);
+                    // create the workbook sheet, in the order of the data
+                    SheetWriter sheet = workbook.createSheet(sheetName,
+                            cellFillMap == null ? Collections.emptyList() : cellFillMap.values());
+                    Map<String, IndexedColors> sheetFills = cellFillMap;
+                    if (workers == null) {
+                        translateSheet(sheetName, sheetValue, sheet, sheetFills);
+                        continue;
+                    }
+                    results.add(workers.submit(() -> {
+                        translateSheet(sheetName, sheetValue, sheet, sheetFills);
+                        return null;
+                    }));
                 }
-
-                // populate placeholder values
-                sheetData.forEach(rowData -> headers.forEach(headerName -> addPlaceholderValues((JsonObject) rowData, headerName)));
-
-                // iterate over each object and add to cell
-                sheetData.forEach(rowData -> {
-                    Row row = sheet.createRow(sheet.getLastRowNum() + 1);
-                    populateObjectValues((JsonObject) rowData, row, "");
-                });
-
-                // remove placeholder values
-                sheet.forEach(row -> {
-                    row.forEach(cell -> {
-                        if (cell != null
-                                && CellType.STRING.equals(cell.getCellType())
-                                && PLACEHOLDER.equals(cell.getStringCellValue())) {
-                            cell.setCellValue("");
-                        }
-                    });
-                });
-                
-                // rename headers
-                JsonObject headerNameMap = sheetValue.getJsonObject(HEADER_RENAME_MAP);
-                if (headerNameMap != null) {
-                    sheet.getRow(0).forEach(headerCell -> {
-                        String headerName = headerCell.getStringCellValue();
-                        if (headerNameMap.containsKey(headerName)) {
-                            String newHeaderName = headerNameMap.getString(headerName);
-                            headerCell.setCellValue(newHeaderName);
-                        }
-                    });
+                for (Future<?> result : results) {
+                    awaitSheet(result);
                 }
-
-                // adjust data in column using autoSizeColumn
-                for (int i = 0; i < headers.size(); i++) {
-                    sheet.autoSizeColumn(i);
+                workbook.write(out);
+            } finally {
+                // stop the other sheets after a failure, their workers check for it between records
+                if (workers != null) {
+                    workers.shutdownNow();
                 }
+            }
+        } catch (Exception e) {
+            log.error("error translating json data", e);
+            throw e;
+        }
+    }
 
-                // set cell background
-                if (sheetValue.getValue(CELL_STYLE_MAP) instanceof JsonObject) {
-                    Map<String, CellStyle> cellStyleMap = new HashMap<>();
-                    sheetValue.getJsonObject(CELL_STYLE_MAP).forEach(styleEntry -> {
-                        CellStyle cellStyle = workbook.createCellStyle();
-                        IndexedColors indexedColors = IndexedColors.valueOf(styleEntry.getValue().toString());
-                        cellStyle.setFillForegroundColor(indexedColors.getIndex());
-                        cellStyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-                        cellStyleMap.put(styleEntry.getKey(), cellStyle);
-                    });
-                    // set cell
-                    sheet.forEach(row -> {
-                        if (row.getRowNum() == 0) {
-                            return;
-                        }
-                        for (int i = 0; i < sheet.getRow(0).getLastCellNum(); i++) {
-                            if (row.getCell(i) == null) {
-                                row.createCell(i).setCellValue("");
-                            }
-                            Cell cell = row.getCell(i);
-                            String headerName = headers.get(cell.getColumnIndex());
-                            String firstField = headerName.split("\\.")[0];
-                            if (cellStyleMap.containsKey(firstField)) {
-                                cell.setCellStyle(cellStyleMap.get(firstField));
-                            } else if (cellStyleMap.containsKey("default_cell_style")) {
-                                cell.setCellStyle(cellStyleMap.get("default_cell_style"));
-                            }
-                        }
-                    });
+    /**
+     * Method to stream records as an Excel file of a single sheet, without parsing all of them first.
+     * The records are a JSON array of objects or objects one after the other, the sheet options are those of a sheet
+     * of {@link #translateJsonToExcel(JsonObject)} without its data. The first header_sample_size records, or
+     * {@value #STREAM_SAMPLE_SIZE} without the option, are held back to size the columns and to infer the headers
+     * when none are given. The header row is written before the other records are read, so their fields outside
+     * the headers are left out. Rows are written to the sink as the records arrive with text inline, the memory
+     * held is bounded by the sample.
+     *
+     * @param sheetName    name of the sheet
+     * @param sheetOptions headers, renames and cell styles of the sheet
+     * @param records      source of the records, left open
+     * @param out          sink the workbook is written to, left open
+     */
+    public static void translateJsonToExcel(String sheetName, JsonObject sheetOptions, InputStream records,
+                                            OutputStream out) throws IOException {
+        RecordSheet sheet = new RecordSheet(sheetName, sheetOptions, out);
+        JsonParser parser = JsonParser.newParser().objectValueMode();
+        parser.handler(event -> {
+            if (event.type() == JsonEventType.VALUE) {
+                try {
+                    sheet.add(event.objectValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            });
-            return getByteData(workbook);
+            }
+        });
+        try {
+            byte[] bytes = new byte[READ_BUFFER_SIZE];
+            for (int length = records.read(bytes); length >= 0; length = records.read(bytes)) {
+                parser.handle(Buffer.buffer(length).appendBytes(bytes, 0, length));
+            }
+            parser.end();
+            sheet.finish();
+        } catch (UncheckedIOException e) {
+            log.error("error translating json records", e.getCause());
+            throw e.getCause();
         } catch (Exception e) {
-            log.error("error translating json data", e);
+            log.error("error translating json records", e);
             throw e;
         }
     }
 
-    private static Row populateObjectValues(JsonObject jsonObject, Row row, String parentPath) {
-        jsonObject.stream().filter(entry -> !(entry.getValue() instanceof JsonObject)
-                && !(entry.getValue() instanceof JsonArray)).forEach(entry -> {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            String nextPath = StringUtils.isBlank(parentPath) ? key : String.format("%s.%s", parentPath, key);
-            // add primitive value
-            addCellValue(value, row, nextPath);
+    /**
+     * Method to stream records as an Excel file of a single sheet between Vert.x streams, see
+     * {@link #translateJsonToExcel(String, JsonObject, InputStream, OutputStream)}. The records are laid out on the
+     * context delivering them, reading pauses while the write queue of the sink is full.
+     * On a failure the records are left paused and the sink is not ended.
+     *
+     * @return completed once the workbook is written and the sink is ended
+     */
+    public static io.vertx.core.Future<Void> translateJsonToExcel(String sheetName, JsonObject sheetOptions,
+                                                                  ReadStream<Buffer> records,
+                                                                  WriteStream<Buffer> out) {
+        Promise<Void> promise = Promise.promise();
+        // the zip is written in small pieces, they are collected into buffers of a useful size
+        RecordSheet sheet = new RecordSheet(sheetName, sheetOptions,
+                new BufferedOutputStream(new WriteStreamOutputStream(out), READ_BUFFER_SIZE));
+        JsonParser parser = JsonParser.newParser(records).objectValueMode();
+        parser.exceptionHandler(promise::tryFail);
+        // set before the handler, which starts the reading
+        parser.endHandler(v -> {
+            if (promise.future().isComplete()) {
+                return;
+            }
+            try {
+                sheet.finish();
+            } catch (Exception e) {
+                promise.tryFail(e);
+                return;
+            }
+            out.end().onComplete(promise);
         });
-        jsonObject.stream().filter(entry -> entry.getValue() instanceof JsonObject).forEach(entry -> {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            String nextPath = StringUtils.isBlank(parentPath) ? key : String.format("%s.%s", parentPath, key);
-            // navigate child object
-            populateObjectValues((JsonObject) value, row, nextPath);
+        parser.handler(event -> {
+            if (event.type() != JsonEventType.VALUE || promise.future().isComplete()) {
+                return;
+            }
+            try {
+                sheet.add(event.objectValue());
+            } catch (Exception e) {
+                parser.pause();
+                promise.tryFail(e);
+                return;
+            }
+            if (out.writeQueueFull()) {
+                parser.pause();
+                out.drainHandler(v -> parser.resume());
+                // the sink may have drained on its own context before the handler was set
+                if (!out.writeQueueFull()) {
+                    parser.resume();
+                }
+            }
         });
-        return jsonObject.stream().filter(entry -> entry.getValue() instanceof JsonArray).map(entry -> {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            String nextPath = StringUtils.isBlank(parentPath) ? key : String.format("%s.%s", parentPath, key);
-            // loop through array
-            nextPath += ARRAY_MARKER;
-            return populateArrayValues((JsonArray) value, row, nextPath);
-        }).max(Comparator.comparing(Row::getRowNum)).orElse(row);
+        return promise.future().onFailure(e -> log.error("error translating json records", e));
     }
 
-    private static Row populateArrayValues(JsonArray jsonArray, Row row, String parentPath) {
-        for (int i = 0; i < jsonArray.size(); i++) {
-            Object item = jsonArray.getValue(i);
-            if (item instanceof JsonObject) {
-                // navigate child object
-                row = populateObjectValues((JsonObject) item, row, parentPath);
-            } else {
-                // add primitive value
-                row = addCellValue(item, row, parentPath);
+    /**
+     * Cell background colors by the first field of the headers, null when the sheet has none
+     */
+    private static Map<String, IndexedColors> getCellFillMap(JsonObject sheetValue) {
+        if (!(sheetValue.getValue(CELL_STYLE_MAP) instanceof JsonObject)) {
+            return null;
+        }
+        Map<String, IndexedColors> cellFillMap = new LinkedHashMap<>();
+        sheetValue.getJsonObject(CELL_STYLE_MAP).forEach(styleEntry ->
+                cellFillMap.put(styleEntry.getKey(), IndexedColors.valueOf(styleEntry.getValue().toString())));
+        return cellFillMap;
+    }
+
+    private static void awaitSheet(Future<?> result) throws IOException {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted translating json data");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            if (i > 0) {
-                // add placeholder parent values
-                addArrayParentPlaceholderValues(row, parentPath);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Lay out the records of a sheet and add them to the sheet
+     */
+    private static void translateSheet(String sheetName, JsonObject sheetValue, SheetWriter sheet,
+                                       Map<String, IndexedColors> cellFillMap) throws IOException {
+        log.info("translating sheet name={}", sheetName);
+        JsonArray sheetData = sheetValue.getJsonArray(DATA);
+
+        // creating the header into the sheet
+        List<String> headers = sheetValue.getValue(HEADERS) instanceof JsonArray
+                ? sheetValue.getJsonArray(HEADERS).stream().map(Object::toString).collect(Collectors.toList())
+                : new ArrayList<>();
+        boolean appendHeaders = false;
+        if (headers.isEmpty()) {
+            Integer sampleSize = sheetValue.getInteger(HEADER_SAMPLE_SIZE);
+            appendHeaders = sampleSize != null && sampleSize < sheetData.size();
+            headers.addAll(inferHeaderNames(sheetData, appendHeaders ? sampleSize : sheetData.size()));
+        }
+        JsonObject headerNameMap = sheetValue.getJsonObject(HEADER_RENAME_MAP);
+        ColumnWidths columnWidths = new ColumnWidths();
+        addHeaders(sheet, headers, 0, headerNameMap, cellFillMap, columnWidths);
+
+        // lay out each object on the rows it expands to and add them to the sheet
+        FieldPath rootPath = FieldPath.compile(headers);
+        Placeholders placeholders = Placeholders.compile(headers);
+        Layout layout = new Layout(headers.size());
+        for (Object rowData : sheetData) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("interrupted translating sheet " + sheetName);
+            }
+            layout.clear();
+            populateObjectValues((JsonObject) rowData, placeholders, rootPath, layout, 0);
+            if (appendHeaders && layout.hasUnknownFields()) {
+                // append the headers of fields not in the sample and lay out the object again
+                int known = headers.size();
+                appendHeaderNames((JsonObject) rowData, headers);
+                addHeaders(sheet, headers, known, headerNameMap, cellFillMap, columnWidths);
+                rootPath = FieldPath.compile(headers);
+                placeholders = Placeholders.compile(headers);
+                layout = new Layout(headers.size());
+                layout.clear();
+                populateObjectValues((JsonObject) rowData, placeholders, rootPath, layout, 0);
             }
+            columnWidths.add(layout);
+            sheet.addRows(layout);
         }
-        return row;
+        sheet.finish(columnWidths);
     }
 
-    private static Row addCellValue(Object value, Row row, String headerName) {
-        Sheet sheet = row.getSheet();
-        Row headerRow = sheet.getRow(0);
-        for (Cell headerCell : headerRow) {
-            if (headerName.equals(headerCell.getStringCellValue())) {
-                int column = headerCell.getColumnIndex();
-                while (row.getCell(column) != null && headerName.contains(ARRAY_MARKER)) {
-                    row = getNextRow(row);
-                }
-                if (value instanceof Double) {
-                    row.createCell(column).setCellValue((Double) value);
-                } else if (value instanceof Integer) {
-                    row.createCell(column).setCellValue((Integer) value);
-                } else if (value instanceof Boolean) {
-                    row.createCell(column).setCellValue((Boolean) value);
-                } else {
-                    row.createCell(column).setCellValue(String.valueOf(value));
-                }
+    /**
+     * Add the headers from the given column on, renamed and with the background of their column
+     */
+    private static void addHeaders(SheetWriter sheet, List<String> headers, int fromColumn, JsonObject headerNameMap,
+                                   Map<String, IndexedColors> cellFillMap, ColumnWidths columnWidths)
+            throws IOException {
+        List<String> headerNames = new ArrayList<>(headers.size());
+        IndexedColors[] columnFills = new IndexedColors[headers.size()];
+        for (int i = 0; i < headers.size(); i++) {
+            String headerName = headers.get(i);
+            // rename headers
+            if (headerNameMap != null && headerNameMap.containsKey(headerName)) {
+                headerNames.add(headerNameMap.getString(headerName));
+            } else {
+                headerNames.add(headerName);
+            }
+            if (i >= fromColumn && headerNames.get(i) != null) {
+                columnWidths.add(i, headerNames.get(i));
+            }
+            // cell background, looked up by the first field of the header
+            if (cellFillMap != null) {
+                String firstField = headerName.split("\\.")[0];
+                columnFills[i] = cellFillMap.containsKey(firstField)
+                        ? cellFillMap.get(firstField) : cellFillMap.get(DEFAULT_CELL_STYLE);
             }
         }
-        return row;
+        sheet.addHeaders(headerNames, columnFills, fromColumn);
     }
 
-    private static void addArrayParentPlaceholderValues(Row row, String parentPath) {
-        String arrayParentPath = parentPath.contains(".") ? parentPath.substring(0, parentPath.lastIndexOf(".")) : "";
-        Row headerRow = row.getSheet().getRow(0);
-        headerRow.forEach(header -> {
-            String childPath = header.getStringCellValue();
-            for (String parentFieldName : arrayParentPath.split("\\.")) {
-                parentFieldName = parentFieldName.replace("[", "\\[").replace("]", "\\]");
-                childPath = childPath.replaceAll("^" + parentFieldName + "\\.?", "");
+    private static int populateObjectValues(JsonObject jsonObject, Placeholders placeholders, FieldPath path,
+                                            Layout layout, int row) {
+        // primitive values first, then child objects and arrays, fields missing from the object come last
+        int lastRow = row;
+        for (int kind = Placeholders.VALUE; kind <= Placeholders.ARRAY; kind++) {
+            if (jsonObject != null) {
+                for (Map.Entry<String, Object> entry : jsonObject) {
+                    Placeholders.Field field = placeholders.field(entry.getKey(), entry.getValue());
+                    int fieldRow = populateFieldValues(kind, entry.getValue(), field, path.child(entry.getKey()), layout, row);
+                    lastRow = Math.max(lastRow, fieldRow);
+                }
             }
-            int column = header.getColumnIndex();
-            if (!childPath.contains(ARRAY_MARKER) && row.getCell(column) == null) {
-                row.createCell(column).setCellValue(PLACEHOLDER);
+            for (String key : placeholders.keys()) {
+                if (jsonObject == null || !jsonObject.containsKey(key)) {
+                    Placeholders.Field field = placeholders.missingField(key);
+                    int fieldRow = populateFieldValues(kind, null, field, path.child(key), layout, row);
+                    lastRow = Math.max(lastRow, fieldRow);
+                }
             }
-        });
+        }
+        return lastRow;
     }
 
-    private static Row getNextRow(Row row) {
-        Sheet sheet = row.getSheet();
-        int nextRowNum = row.getRowNum() + 1;
-        return sheet.getRow(nextRowNum) == null ? sheet.createRow(nextRowNum) : sheet.getRow(nextRowNum);
+    private static int populateFieldValues(int kind, Object value, Placeholders.Field field, FieldPath path,
+                                           Layout layout, int row) {
+        if (field.kind(value) != kind) {
+            return row;
+        }
+        boolean placeholder = field.isPlaceholder();
+        if (kind == Placeholders.VALUE) {
+            // add primitive value, the rows of array values do not extend the object
+            addCellValue(placeholder ? "" : value, row, path, layout);
+            return row;
+        } else if (kind == Placeholders.OBJECT) {
+            // navigate child object
+            populateObjectValues(placeholder ? null : (JsonObject) value, field.children, path, layout, row);
+            return row;
+        }
+        // loop through array
+        return populateArrayValues(placeholder ? null : (JsonArray) value, field.children, path.items(), layout, row);
     }
 
-    private static void addPlaceholderValues(JsonObject jsonObject, String fieldPath) {
-        if (fieldPath.contains(".")) {
-            int dividerIndex = fieldPath.indexOf(".");
-            String firstField = fieldPath.substring(0, dividerIndex);
-            String newFieldPath = fieldPath.substring(dividerIndex + 1);
-            if (firstField.endsWith(ARRAY_MARKER)) {
-                // add array placeholder
-                String arrayField = firstField.replace(ARRAY_MARKER, "");
-                if (!(jsonObject.getValue(arrayField) instanceof JsonArray) || jsonObject.getJsonArray(arrayField).isEmpty()) {
-                    jsonObject.put(arrayField, new JsonArray().add(new JsonObject()));
-                }
-                jsonObject.getJsonArray(arrayField).forEach(item -> addPlaceholderValues((JsonObject) item, newFieldPath));
+    /**
+     * @param jsonArray array to add, null for the placeholder array holding a single empty object
+     */
+    private static int populateArrayValues(JsonArray jsonArray, Placeholders placeholders, FieldPath path,
+                                           Layout layout, int row) {
+        int size = jsonArray == null ? 1 : jsonArray.size();
+        for (int i = 0; i < size; i++) {
+            Object item = jsonArray == null ? null : jsonArray.getValue(i);
+            if (jsonArray == null || item instanceof JsonObject) {
+                // navigate child object
+                row = populateObjectValues((JsonObject) item, placeholders, path, layout, row);
             } else {
-                // add object placeholder
-                if (!(jsonObject.getValue(firstField) instanceof JsonObject)) {
-                    jsonObject.put(firstField, new JsonObject());
+                // add primitive value
+                row = addCellValue(item, row, path, layout);
+            }
+            if (i > 0) {
+                // add placeholder parent values
+                for (int column : path.parentColumns()) {
+                    if (layout.get(row, column) == null) {
+                        layout.set(row, column, "");
+                    }
                 }
-                addPlaceholderValues(jsonObject.getJsonObject(firstField), newFieldPath);
             }
-        } else if (fieldPath.endsWith(ARRAY_MARKER)) {
-            // add primitive array placeholder
-            String arrayField = fieldPath.replace(ARRAY_MARKER, "");
-            if (!(jsonObject.getValue(arrayField) instanceof JsonArray) || jsonObject.getJsonArray(arrayField).isEmpty()) {
-                jsonObject.put(fieldPath, new JsonArray().add(PLACEHOLDER));
+        }
+        return row;
+    }
+
+    private static int addCellValue(Object value, int row, FieldPath path, Layout layout) {
+        if (path.columns.length == 0) {
+            layout.unknownFields = true;
+        }
+        for (int column : path.columns) {
+            // array values go below the values already in the column
+            while (path.array && layout.get(row, column) != null) {
+                row++;
             }
-        } else {
-            // add primitive value placeholder
-            if (!jsonObject.containsKey(fieldPath)) {
-                jsonObject.put(fieldPath, PLACEHOLDER);
+            if (value instanceof Double || value instanceof Integer || value instanceof Boolean) {
+                layout.set(row, column, value);
+            } else {
+                layout.set(row, column, String.valueOf(value));
             }
         }
+        return row;
+    }
+
+    /**
+     * Header names of the first records in the order they are found, with the top level guid fields first.
+     * Large sheets are read in chunks in parallel, the chunks are merged in their order so the headers are
+     * the same as when the records are read one after the other.
+     */
+    private static List<String> inferHeaderNames(JsonArray sheetData, int size) {
+        int chunks = (size + HEADER_CHUNK_SIZE - 1) / HEADER_CHUNK_SIZE;
+        HeaderNames headerNames = new HeaderNames();
+        IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+            HeaderNames chunkNames = new HeaderNames();
+            for (int i = chunk * HEADER_CHUNK_SIZE; i < Math.min(size, (chunk + 1) * HEADER_CHUNK_SIZE); i++) {
+                populateHeaderNames(sheetData.getJsonObject(i), chunkNames, null);
+            }
+            return chunkNames;
+        }).forEachOrdered(headerNames::addAll);
+        return headerNames.toList();
     }
 
-    private static void populateHeaderNames(JsonObject jsonObject, List<String> headers, String prefix) {
+    /**
+     * Append the header names of a record that are not in the headers yet, in the order they are found
+     */
+    private static void appendHeaderNames(JsonObject jsonObject, List<String> headers) {
+        HeaderNames headerNames = new HeaderNames();
+        populateHeaderNames(jsonObject, headerNames, null);
+        Set<String> known = new HashSet<>(headers);
+        headerNames.names.stream().filter(headerName -> !known.contains(headerName)).forEach(headers::add);
+    }
+
+    private static void populateHeaderNames(JsonObject jsonObject, HeaderNames headers, String prefix) {
         jsonObject.forEach(entry -> {
             String fieldName = entry.getKey();
             String headerName = StringUtils.isBlank(prefix) ? fieldName : String.format("%s.%s", prefix, fieldName);
@@ -279,32 +482,688 @@ public class JsonToExcelUtil {
                     if (item instanceof JsonObject) {
                         populateHeaderNames((JsonObject) item, headers, headerName + ARRAY_MARKER);
                     } else {
-                        String finalHeaderName = headerName + ARRAY_MARKER;
-                        if (!headers.contains(finalHeaderName)) {
-                            headers.add(finalHeaderName);
-                        }
+                        headers.add(headerName + ARRAY_MARKER, false);
                     }
                 });
             } else {
-                if (!headers.contains(headerName)) {
-                    if (headerName.endsWith(FieldNameConstants.GUID) && StringUtils.isBlank(prefix)) {
-                        headers.add(0, headerName);
-                    } else {
-                        headers.add(headerName);
+                headers.add(headerName, headerName.endsWith(FieldNameConstants.GUID) && StringUtils.isBlank(prefix));
+            }
+        });
+    }
+
+    /**
+     * Header names in the order they are first found, top level guid fields are listed first with the last found
+     * leading
+     */
+    private static final class HeaderNames {
+
+        private final Set<String> names = new LinkedHashSet<>();
+        private final Set<String> leading = new HashSet<>();
+
+        void add(String headerName, boolean lead) {
+            if (names.add(headerName) && lead) {
+                leading.add(headerName);
+            }
+        }
+
+        void addAll(HeaderNames headerNames) {
+            headerNames.names.forEach(headerName -> add(headerName, headerNames.leading.contains(headerName)));
+        }
+
+        List<String> toList() {
+            List<String> headers = new ArrayList<>(names.size());
+            names.stream().filter(leading::contains).forEach(headers::add);
+            Collections.reverse(headers);
+            names.stream().filter(headerName -> !leading.contains(headerName)).forEach(headers::add);
+            return headers;
+        }
+    }
+
+    /**
+     * Field path of the sheet data compiled against the header columns.
+     * Child paths are resolved once and cached, so populating a row only takes map lookups
+     * instead of formatting each path and comparing it with every header.
+     */
+    private static final class FieldPath {
+
+        private static final int[] NO_COLUMNS = new int[0];
+
+        private final String path;
+        private final List<String> headers;
+        private final Map<String, int[]> columnsByPath;
+        private final Map<String, FieldPath> children = new HashMap<>();
+        // columns written to, more than one when a header is repeated
+        private final int[] columns;
+        // array columns move down a row instead of overwriting a value
+        private final boolean array;
+        private FieldPath items;
+        private int[] parentColumns;
+
+        private FieldPath(String path, List<String> headers, Map<String, int[]> columnsByPath) {
+            this.path = path;
+            this.headers = headers;
+            this.columnsByPath = columnsByPath;
+            this.columns = columnsByPath.getOrDefault(path, NO_COLUMNS);
+            this.array = path.contains(ARRAY_MARKER);
+        }
+
+        static FieldPath compile(List<String> headers) {
+            Map<String, int[]> columnsByPath = new HashMap<>();
+            for (int column = 0; column < headers.size(); column++) {
+                int[] columns = columnsByPath.getOrDefault(headers.get(column), NO_COLUMNS);
+                columns = Arrays.copyOf(columns, columns.length + 1);
+                columns[columns.length - 1] = column;
+                columnsByPath.put(headers.get(column), columns);
+            }
+            return new FieldPath("", headers, columnsByPath);
+        }
+
+        FieldPath child(String key) {
+            FieldPath child = children.get(key);
+            if (child == null) {
+                child = new FieldPath(StringUtils.isBlank(path) ? key : String.format("%s.%s", path, key), headers, columnsByPath);
+                children.put(key, child);
+            }
+            return child;
+        }
+
+        FieldPath items() {
+            if (items == null) {
+                items = new FieldPath(path + ARRAY_MARKER, headers, columnsByPath);
+            }
+            return items;
+        }
+
+        /**
+         * Columns outside the arrays of this path, filled with placeholders on the rows of later array items
+         */
+        int[] parentColumns() {
+            if (parentColumns == null) {
+                String arrayParentPath = path.contains(".") ? path.substring(0, path.lastIndexOf(".")) : "";
+                List<Integer> found = new ArrayList<>();
+                for (int column = 0; column < headers.size(); column++) {
+                    String childPath = headers.get(column);
+                    for (String parentFieldName : arrayParentPath.split("\\.")) {
+                        parentFieldName = parentFieldName.replace("[", "\\[").replace("]", "\\]");
+                        childPath = childPath.replaceAll("^" + parentFieldName + "\\.?", "");
+                    }
+                    if (!childPath.contains(ARRAY_MARKER)) {
+                        found.add(column);
                     }
                 }
+                parentColumns = found.stream().mapToInt(Integer::intValue).toArray();
             }
-        });
+            return parentColumns;
+        }
     }
 
-    private static byte[] getByteData(Workbook workbook) throws IOException {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            // write the workbook into target byte array
+    /**
+     * Placeholder values for the header fields a record is missing, so the parent values of an array
+     * item are repeated on its rows and every header has a cell.
+     * The fields each header expects are compiled once per sheet and resolved against the record while
+     * its rows are laid out, the record itself is not changed. As a header is applied in order, a field
+     * holding a different kind of value than a header expects is replaced with an empty one, so the
+     * last header reaching a field decides its kind.
+     */
+    private static final class Placeholders {
+
+        static final int VALUE = 0;
+        static final int OBJECT = 1;
+        static final int ARRAY = 2;
+        private static final int MISSING = 3;
+
+        private static final Placeholders NONE = new Placeholders(Collections.emptyList());
+        private static final Field AS_IS = new Field(-1, NONE);
+
+        // the kinds expected of a field by the headers reaching it, fields in the order they are first reached
+        private final Map<String, List<Expected>> expected = new LinkedHashMap<>();
+        // resolved fields by the kind of value the record holds
+        private final Map<String, Field[]> fields = new HashMap<>();
+
+        private Placeholders(List<List<String>> fieldPaths) {
+            for (List<String> fieldPath : fieldPaths) {
+                String firstField = fieldPath.get(0);
+                List<String> newFieldPath = fieldPath.subList(1, fieldPath.size());
+                if (!newFieldPath.isEmpty() && firstField.endsWith(ARRAY_MARKER)) {
+                    expect(firstField.replace(ARRAY_MARKER, ""), ARRAY, newFieldPath);
+                } else if (!newFieldPath.isEmpty()) {
+                    expect(firstField, OBJECT, newFieldPath);
+                } else if (!firstField.endsWith(ARRAY_MARKER)) {
+                    // a missing primitive array has no cells to fill
+                    expect(firstField, VALUE, newFieldPath);
+                }
+            }
+        }
+
+        static Placeholders compile(List<String> headers) {
+            return new Placeholders(headers.stream()
+                    .map(headerName -> Arrays.asList(headerName.split("\\.", -1)))
+                    .collect(Collectors.toList()));
+        }
+
+        private void expect(String fieldName, int kind, List<String> newFieldPath) {
+            expected.computeIfAbsent(fieldName, key -> new ArrayList<>()).add(new Expected(kind, newFieldPath));
+        }
+
+        Set<String> keys() {
+            return expected.keySet();
+        }
+
+        Field field(String key, Object value) {
+            if (!expected.containsKey(key)) {
+                return AS_IS;
+            }
+            if (value instanceof JsonObject) {
+                return resolve(key, OBJECT);
+            } else if (value instanceof JsonArray && !((JsonArray) value).isEmpty()) {
+                return resolve(key, ARRAY);
+            }
+            return resolve(key, VALUE);
+        }
+
+        Field missingField(String key) {
+            return resolve(key, MISSING);
+        }
+
+        private Field resolve(String key, int present) {
+            Field[] resolved = fields.computeIfAbsent(key, k -> new Field[MISSING + 1]);
+            if (resolved[present] == null) {
+                // apply the headers in order, remembering the last one that replaced the value
+                List<Expected> expectations = expected.get(key);
+                int kind = present;
+                int replaced = -1;
+                for (int i = 0; i < expectations.size(); i++) {
+                    int expectedKind = expectations.get(i).kind;
+                    if (expectedKind == VALUE ? kind == MISSING : kind != expectedKind) {
+                        kind = expectedKind;
+                        replaced = i;
+                    }
+                }
+                List<List<String>> childPaths = new ArrayList<>();
+                for (int i = Math.max(0, replaced); i < expectations.size(); i++) {
+                    if (expectations.get(i).kind == kind && kind != VALUE) {
+                        childPaths.add(expectations.get(i).newFieldPath);
+                    }
+                }
+                resolved[present] = new Field(replaced < 0 ? -1 : kind,
+                        childPaths.isEmpty() ? NONE : new Placeholders(childPaths));
+            }
+            return resolved[present];
+        }
+
+        private static final class Expected {
+
+            private final int kind;
+            private final List<String> newFieldPath;
+
+            private Expected(int kind, List<String> newFieldPath) {
+                this.kind = kind;
+                this.newFieldPath = newFieldPath;
+            }
+        }
+
+        /**
+         * Field of a record, either kept as it is or replaced with a placeholder of the given kind
+         */
+        static final class Field {
+
+            private final int placeholder;
+            // placeholders of the child object or array items
+            final Placeholders children;
+
+            private Field(int placeholder, Placeholders children) {
+                this.placeholder = placeholder;
+                this.children = children;
+            }
+
+            boolean isPlaceholder() {
+                return placeholder >= 0;
+            }
+
+            int kind(Object value) {
+                if (isPlaceholder()) {
+                    return placeholder;
+                }
+                return value instanceof JsonObject ? OBJECT : value instanceof JsonArray ? ARRAY : VALUE;
+            }
+        }
+    }
+
+    /**
+     * Cell values of the rows a record expands to, reused from one record to the next
+     */
+    static final class Layout {
+
+        private final int columns;
+        private final List<Object[]> rows = new ArrayList<>();
+        private int size;
+        // set when a value has no column
+        private boolean unknownFields;
+
+        private Layout(int columns) {
+            this.columns = columns;
+        }
+
+        void clear() {
+            for (int row = 0; row < size; row++) {
+                Arrays.fill(rows.get(row), null);
+            }
+            // a record takes at least one row, even without values
+            size = 1;
+            unknownFields = false;
+            if (rows.isEmpty()) {
+                rows.add(new Object[columns]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean hasUnknownFields() {
+            return unknownFields;
+        }
+
+        /**
+         * Values of a row by column, null where the row has no cell
+         */
+        Object[] getRow(int row) {
+            return rows.get(row);
+        }
+
+        Object get(int row, int column) {
+            return row < size ? rows.get(row)[column] : null;
+        }
+
+        void set(int row, int column, Object value) {
+            while (rows.size() <= row) {
+                rows.add(new Object[columns]);
+            }
+            size = Math.max(size, row + 1);
+            rows.get(row)[column] = value;
+        }
+    }
+
+    /**
+     * Sheet of a streamed workbook laid out from its records as they arrive. The first records are held back
+     * until the sample is complete, then the headers and the column widths are fixed and the rows are streamed.
+     */
+    private static final class RecordSheet {
+
+        private final String sheetName;
+        private final JsonObject sheetOptions;
+        private final OutputStream out;
+        private final int sampleSize;
+        private final List<Object> sample = new ArrayList<>();
+        private SheetWriter sheet;
+        private FieldPath rootPath;
+        private Placeholders placeholders;
+        private Layout layout;
+        private ColumnWidths columnWidths;
+        private boolean inferred;
+        // records with fields outside the inferred headers
+        private long unknownRecords;
+
+        RecordSheet(String sheetName, JsonObject sheetOptions, OutputStream out) {
+            this.sheetName = sheetName;
+            this.sheetOptions = sheetOptions;
+            this.out = out;
+            this.sampleSize = Math.max(1, sheetOptions.getInteger(HEADER_SAMPLE_SIZE, STREAM_SAMPLE_SIZE));
+        }
+
+        void add(JsonObject record) throws IOException {
+            normalizeNumbers(record.getMap());
+            if (sheet != null) {
+                addRecord(record);
+                return;
+            }
+            sample.add(record);
+            if (sample.size() >= sampleSize) {
+                start();
+            }
+        }
+
+        void finish() throws IOException {
+            if (sheet == null) {
+                start();
+            }
+            sheet.finish(columnWidths);
+            if (unknownRecords > 0) {
+                log.warn("left out fields of {} records of sheet name={} missing from the sampled headers",
+                        unknownRecords, sheetName);
+            }
+        }
+
+        private void start() throws IOException {
+            log.info("streaming sheet name={}", sheetName);
+            JsonArray sampleData = new JsonArray(sample);
+            List<String> headers;
+            if (sheetOptions.getValue(HEADERS) instanceof JsonArray) {
+                headers = sheetOptions.getJsonArray(HEADERS).stream().map(Object::toString).collect(Collectors.toList());
+            } else {
+                headers = inferHeaderNames(sampleData, sampleData.size());
+                inferred = true;
+            }
+            columnWidths = new ColumnWidths();
+            sheet = JsonToExcelOoxmlWriter.stream(sheetName, columnWidths, out);
+            addHeaders(sheet, headers, 0, sheetOptions.getJsonObject(HEADER_RENAME_MAP), getCellFillMap(sheetOptions),
+                    columnWidths);
+            rootPath = FieldPath.compile(headers);
+            placeholders = Placeholders.compile(headers);
+            layout = new Layout(headers.size());
+            // the columns are written with the first row, so the sample is measured before it is added
+            for (Object record : sample) {
+                layout.clear();
+                populateObjectValues((JsonObject) record, placeholders, rootPath, layout, 0);
+                columnWidths.add(layout);
+            }
+            for (Object record : sample) {
+                addRecord((JsonObject) record);
+            }
+            sample.clear();
+        }
+
+        private void addRecord(JsonObject record) throws IOException {
+            layout.clear();
+            populateObjectValues(record, placeholders, rootPath, layout, 0);
+            if (inferred && layout.hasUnknownFields()) {
+                unknownRecords++;
+            }
+            sheet.addRows(layout);
+        }
+    }
+
+    /**
+     * The parser of a stream decodes whole numbers to Long, those in range are turned into the Integer a decoded
+     * JsonObject holds, so the cells are the same as for parsed json data
+     */
+    @SuppressWarnings("unchecked")
+    private static void normalizeNumbers(Object value) {
+        if (value instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                entry.setValue(normalizeNumber(entry.getValue()));
+            }
+        } else if (value instanceof List) {
+            for (ListIterator<Object> items = ((List<Object>) value).listIterator(); items.hasNext(); ) {
+                items.set(normalizeNumber(items.next()));
+            }
+        }
+    }
+
+    private static Object normalizeNumber(Object value) {
+        if (value instanceof Long && (Long) value == ((Long) value).intValue()) {
+            return ((Long) value).intValue();
+        }
+        normalizeNumbers(value);
+        return value;
+    }
+
+    /**
+     * Hands the bytes written to it to a Vert.x write stream, which is not ended on close
+     */
+    private static final class WriteStreamOutputStream extends OutputStream {
+
+        private final WriteStream<Buffer> out;
+
+        private WriteStreamOutputStream(WriteStream<Buffer> out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(Buffer.buffer(1).appendByte((byte) b));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.write(Buffer.buffer(len).appendBytes(b, off, len));
+        }
+    }
+
+    /**
+     * Workbook being written, its sheets are created one after the other and then filled by their own workers
+     */
+    interface WorkbookWriter extends Closeable {
+
+        /**
+         * @param fills backgrounds the sheet uses, added up front so the styles are numbered the same on every run
+         */
+        SheetWriter createSheet(String sheetName, Collection<IndexedColors> fills) throws IOException;
+
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sheet being written by a single worker
+     */
+    interface SheetWriter {
+
+        /**
+         * Add the header names from the given column on, with the background of every column or null for none
+         */
+        void addHeaders(List<String> headerNames, IndexedColors[] columnFills, int fromColumn) throws IOException;
+
+        /**
+         * Add the rows a record was laid out on, the layout is reused once this returns
+         */
+        void addRows(Layout layout) throws IOException;
+
+        void finish(ColumnWidths columnWidths) throws IOException;
+    }
+
+    /**
+     * Writes the workbook through POI's streaming workbook. The rows of a sheet are batched and every batch is
+     * added and flushed to a temporary file while holding the workbook, since POI is not thread safe.
+     */
+    private static final class PoiWorkbookWriter implements WorkbookWriter {
+
+        // rows are flushed explicitly once a batch is complete, since a record may revisit its earlier rows
+        private final SXSSFWorkbook workbook = new SXSSFWorkbook(-1);
+        private final StylePool styles = new StylePool(workbook);
+
+        @Override
+        public SheetWriter createSheet(String sheetName, Collection<IndexedColors> fills) {
+            SXSSFSheet sheet = workbook.createSheet(sheetName);
+            styles.header();
+            fills.forEach(styles::fill);
+            return new PoiSheetWriter(sheet);
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
             workbook.write(out);
-            return out.toByteArray();
-        } catch (IOException e) {
-            log.error("error writing workbook to byte array", e);
-            throw e;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // delete the temporary files holding the flushed rows
+            workbook.dispose();
+            workbook.close();
+        }
+
+        private final class PoiSheetWriter implements SheetWriter {
+
+            private final SXSSFSheet sheet;
+            private final List<Object[]> batch = new ArrayList<>();
+            private Row header;
+            private CellStyle[] columnStyles = new CellStyle[0];
+            private int lastRowNum;
+
+            private PoiSheetWriter(SXSSFSheet sheet) {
+                this.sheet = sheet;
+            }
+
+            @Override
+            public void addHeaders(List<String> headerNames, IndexedColors[] columnFills, int fromColumn) {
+                synchronized (workbook) {
+                    // rows are flushed as they are written, so the header row is kept in the workbook to append to it
+                    if (header == null) {
+                        header = workbook.getXSSFWorkbook().getSheet(sheet.getSheetName()).createRow(0);
+                    }
+                    columnStyles = Arrays.copyOf(columnStyles, headerNames.size());
+                    for (int i = fromColumn; i < headerNames.size(); i++) {
+                        Cell cell = header.createCell(i);
+                        cell.setCellValue(headerNames.get(i));
+                        // apply the bold style to headers
+                        cell.setCellStyle(styles.header());
+                        // the column style shows on empty cells without creating them
+                        if (columnFills[i] != null) {
+                            columnStyles[i] = styles.fill(columnFills[i]);
+                            sheet.setDefaultColumnStyle(i, columnStyles[i]);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void addRows(Layout layout) {
+                for (int row = 0; row < layout.size(); row++) {
+                    batch.add(layout.getRow(row).clone());
+                }
+                if (batch.size() >= ROW_BATCH_SIZE) {
+                    flush();
+                }
+            }
+
+            @Override
+            public void finish(ColumnWidths columnWidths) {
+                flush();
+                synchronized (workbook) {
+                    for (int column = 0; column < columnStyles.length; column++) {
+                        sheet.setColumnWidth(column, columnWidths.getWidth(column) * 256);
+                    }
+                }
+            }
+
+            private void flush() {
+                synchronized (workbook) {
+                    for (Object[] values : batch) {
+                        Row row = sheet.createRow(++lastRowNum);
+                        for (int column = 0; column < values.length; column++) {
+                            Object value = values[column];
+                            if (value == null) {
+                                continue;
+                            }
+                            Cell cell = row.createCell(column);
+                            if (value instanceof Double) {
+                                cell.setCellValue((Double) value);
+                            } else if (value instanceof Integer) {
+                                cell.setCellValue((Integer) value);
+                            } else if (value instanceof Boolean) {
+                                cell.setCellValue((Boolean) value);
+                            } else {
+                                cell.setCellValue((String) value);
+                            }
+                            // cells holding a value take the style of their column
+                            if (columnStyles[column] != null) {
+                                cell.setCellStyle(columnStyles[column]);
+                            }
+                        }
+                    }
+                    try {
+                        sheet.flushRows();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Cell styles of a workbook, created once and shared by the cells and sheets looking the same
+     */
+    private static final class StylePool {
+
+        private final Workbook workbook;
+        private final Map<IndexedColors, CellStyle> fillStyles = new EnumMap<>(IndexedColors.class);
+        private CellStyle headerStyle;
+
+        private StylePool(Workbook workbook) {
+            this.workbook = workbook;
+        }
+
+        CellStyle header() {
+            if (headerStyle == null) {
+                // creating cell style for header to make it bold
+                headerStyle = workbook.createCellStyle();
+                Font font = workbook.createFont();
+                font.setBold(true);
+                headerStyle.setFont(font);
+            }
+            return headerStyle;
+        }
+
+        CellStyle fill(IndexedColors fill) {
+            return fillStyles.computeIfAbsent(fill, indexedColors -> {
+                CellStyle cellStyle = workbook.createCellStyle();
+                cellStyle.setFillForegroundColor(indexedColors.getIndex());
+                cellStyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+                return cellStyle;
+            });
+        }
+    }
+
+    /**
+     * Column widths estimated from the longest text written to each column, so the cells do not have to be
+     * measured with the font afterwards
+     */
+    static final class ColumnWidths {
+
+        // characters added to the longest text for the cell margins
+        private static final int PADDING = 2;
+        private static final int MAX_WIDTH = 255;
+        // digits shown by the General number format
+        private static final int MAX_NUMBER_LENGTH = 11;
+
+        private int[] lengths = new int[0];
+
+        void add(int column, Object value) {
+            if (column >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, Math.max(column + 1, lengths.length * 2));
+            }
+            lengths[column] = Math.max(lengths[column], getLength(value));
+        }
+
+        void add(Layout layout) {
+            for (int row = 0; row < layout.size(); row++) {
+                Object[] values = layout.getRow(row);
+                for (int column = 0; column < values.length; column++) {
+                    if (values[column] != null) {
+                        add(column, values[column]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Width of a column in characters
+         */
+        int getWidth(int column) {
+            return Math.min((column < lengths.length ? lengths[column] : 0) + PADDING, MAX_WIDTH);
+        }
+
+        private static int getLength(Object value) {
+            if (value instanceof Boolean) {
+                return (Boolean) value ? 4 : 5;
+            } else if (value instanceof Double) {
+                String text = String.valueOf(value);
+                return Math.min(text.endsWith(".0") ? text.length() - 2 : text.length(), MAX_NUMBER_LENGTH);
+            } else if (value instanceof Integer) {
+                return String.valueOf(value).length();
+            }
+            // the longest line of the text
+            String text = (String) value;
+            int length = 0;
+            int lineStart = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    length = Math.max(length, i - lineStart);
+                    lineStart = i + 1;
+                }
+            }
+            return Math.max(length, text.length() - lineStart);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the workbook backends of {@link JsonToExcelUtil} on generated sheets.
+ * Every sheet holds records with text, numbers, a nested object and an array expanding to several rows, the
+ * workbook is written to a sink counting its bytes so only the translation is measured.
+ * Arguments: sheets, records per sheet, threads and runs per backend.
+ */
+public class JsonToExcelBenchmark {
+
+    private JsonToExcelBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sheets = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int records = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        JsonObject jsonData = generate(sheets, records);
+        System.out.println("Translating " + sheets + " sheets of " + records + " records on " + threads + " threads");
+        for (JsonToExcelUtil.ExcelWriter excelWriter : JsonToExcelUtil.ExcelWriter.values()) {
+            // the first run warms up the code paths of the backend
+            run(jsonData, threads, excelWriter);
+            long best = Long.MAX_VALUE;
+            long bytes = 0;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                bytes = run(jsonData, threads, excelWriter);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-6s %6d ms %8.1f MB %8.1f MB/s%n", excelWriter,
+                    TimeUnit.NANOSECONDS.toMillis(best), bytes / 1e6, bytes / 1e6 / (best / 1e9));
+        }
+    }
+
+    private static long run(JsonObject jsonData, int threads, JsonToExcelUtil.ExcelWriter excelWriter)
+            throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        JsonToExcelUtil.translateJsonToExcel(jsonData, out, threads, excelWriter);
+        return out.count;
+    }
+
+    private static JsonObject generate(int sheets, int records) {
+        Random random = new Random(42);
+        JsonObject jsonData = new JsonObject();
+        for (int sheet = 0; sheet < sheets; sheet++) {
+            JsonArray data = new JsonArray();
+            for (int i = 0; i < records; i++) {
+                JsonArray items = new JsonArray();
+                for (int item = random.nextInt(4); item > 0; item--) {
+                    items.add(new JsonObject()
+                            .put("sku", "SKU-" + random.nextInt(10_000))
+                            .put("quantity", random.nextInt(100))
+                            .put("price", random.nextInt(100_000) / 100.0));
+                }
+                data.add(new JsonObject()
+                        .put("guid", Long.toHexString(random.nextLong()))
+                        .put("name", "customer " + random.nextInt(1_000))
+                        .put("active", random.nextBoolean())
+                        .put("address", new JsonObject()
+                                .put("city", "city " + random.nextInt(100))
+                                .put("zip", 10_000 + random.nextInt(90_000)))
+                        .put("items", items));
+            }
+            jsonData.put("sheet" + sheet, new JsonObject()
+                    .put(JsonToExcelUtil.DATA, data)
+                    .put(JsonToExcelUtil.CELL_STYLE_MAP, new JsonObject()
+                            .put("items", "LIGHT_YELLOW")
+                            .put(JsonToExcelUtil.DEFAULT_CELL_STYLE, "WHITE")));
+        }
+        return jsonData;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,682 @@
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.util.WorkbookUtil;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the workbook of {@link JsonToExcelUtil} as SpreadsheetML straight into the zip, without the POI object
+ * model. Every sheet worker encodes its rows with a reused byte buffer into a temporary file of its own, so no
+ * row or cell objects are created and the workers do not wait for each other. Text goes to a shared strings table
+ * common to all sheets. The parts of the workbook are put together when it is written.
+ * A workbook of a single sheet can instead be streamed, see {@link #stream(String, JsonToExcelUtil.ColumnWidths, OutputStream)}.
+ */
+public class JsonToExcelOoxmlWriter implements JsonToExcelUtil.WorkbookWriter {
+
+    private static final String MAIN_NAMESPACE = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    // limits of a sheet and a cell, the same POI enforces
+    private static final int MAX_ROWS = 1_048_576;
+    private static final int MAX_COLUMNS = 16_384;
+    private static final int MAX_TEXT_LENGTH = 32_767;
+    // cell styles before the fills, the default one and the bold header
+    private static final int HEADER_STYLE = 1;
+    private static final int FIRST_FILL_STYLE = 2;
+
+    private final List<OoxmlSheetWriter> sheets = new ArrayList<>();
+    private final Set<String> sheetNames = new HashSet<>();
+    private final Map<IndexedColors, Integer> fillStyles = new LinkedHashMap<>();
+    // null when text is written inline
+    private final SharedStrings strings;
+
+    public JsonToExcelOoxmlWriter() {
+        this(new SharedStrings());
+    }
+
+    private JsonToExcelOoxmlWriter(SharedStrings strings) {
+        this.strings = strings;
+    }
+
+    /**
+     * Start a workbook of a single sheet streamed to the sink as its rows are added. The parts before the sheet
+     * are written right away and the rows go into the zip without being spooled, the columns are written with the
+     * first row so the headers have to be added and the widths measured by then. Text is written inline instead
+     * of to a shared strings table, so the memory held does not grow with the sheet.
+     *
+     * @param columnWidths widths of the columns, read when the first row is added
+     * @param out          sink the workbook is written to, left open once the sheet is finished
+     */
+    static JsonToExcelUtil.SheetWriter stream(String sheetName, JsonToExcelUtil.ColumnWidths columnWidths,
+                                              OutputStream out) throws IOException {
+        JsonToExcelOoxmlWriter workbook = new JsonToExcelOoxmlWriter(null);
+        workbook.addSheetName(sheetName);
+        return workbook.new StreamingSheetWriter(sheetName, columnWidths, out);
+    }
+
+    @Override
+    public JsonToExcelUtil.SheetWriter createSheet(String sheetName, Collection<IndexedColors> fills) throws IOException {
+        addSheetName(sheetName);
+        fills.forEach(this::getFillStyle);
+        OoxmlSheetWriter sheet = new OoxmlSheetWriter(sheetName);
+        sheets.add(sheet);
+        return sheet;
+    }
+
+    private void addSheetName(String sheetName) {
+        WorkbookUtil.validateSheetName(sheetName);
+        if (!sheetNames.add(sheetName.toUpperCase(Locale.ROOT))) {
+            throw new IllegalArgumentException("The workbook already contains a sheet named '" + sheetName + "'");
+        }
+    }
+
+    private synchronized int getFillStyle(IndexedColors fill) {
+        return fillStyles.computeIfAbsent(fill, indexedColors -> FIRST_FILL_STYLE + fillStyles.size());
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        try (ZipOutputStream zip = openZip(out)) {
+            XmlEncoder xml = new XmlEncoder(zip);
+            List<String> names = sheets.stream().map(sheet -> sheet.name).collect(Collectors.toList());
+            writeContentTypes(zip, xml, names.size());
+            writeRelationships(zip, xml);
+            writeWorkbook(zip, xml, names);
+            writeWorkbookRelationships(zip, xml, names.size());
+            writeStyles(zip, xml);
+            for (int i = 0; i < sheets.size(); i++) {
+                sheets.get(i).write(zip, xml, "xl/worksheets/sheet" + (i + 1) + ".xml");
+            }
+            writeSharedStrings(zip, xml);
+        }
+    }
+
+    /**
+     * Zip of the workbook, closing it finishes the zip but leaves the sink open
+     */
+    private static ZipOutputStream openZip(OutputStream out) {
+        ZipOutputStream zip = new ZipOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.flush();
+            }
+        });
+        // the sheets are mostly numbers and repeated text, compressing them harder does not pay off
+        zip.setLevel(Deflater.BEST_SPEED);
+        return zip;
+    }
+
+    private void writeContentTypes(ZipOutputStream zip, XmlEncoder xml, int sheetCount) throws IOException {
+        zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+        xml.ascii(XML_DECLARATION)
+                .ascii("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+                .ascii("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+                .ascii("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+                .ascii("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>")
+                .ascii("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        if (strings != null) {
+            xml.ascii("<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml\"/>");
+        }
+        for (int i = 0; i < sheetCount; i++) {
+            xml.ascii("<Override PartName=\"/xl/worksheets/sheet").number(i + 1)
+                    .ascii(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        xml.ascii("</Types>").flush();
+        zip.closeEntry();
+    }
+
+    private void writeRelationships(ZipOutputStream zip, XmlEncoder xml) throws IOException {
+        zip.putNextEntry(new ZipEntry("_rels/.rels"));
+        xml.ascii(XML_DECLARATION)
+                .ascii("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">")
+                .ascii("<Relationship Id=\"rId1\" Type=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                .ascii("/officeDocument\" Target=\"xl/workbook.xml\"/></Relationships>").flush();
+        zip.closeEntry();
+    }
+
+    private void writeWorkbook(ZipOutputStream zip, XmlEncoder xml, List<String> names) throws IOException {
+        zip.putNextEntry(new ZipEntry("xl/workbook.xml"));
+        xml.ascii(XML_DECLARATION)
+                .ascii("<workbook xmlns=\"").ascii(MAIN_NAMESPACE).ascii("\" xmlns:r=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                .ascii("\"><sheets>");
+        for (int i = 0; i < names.size(); i++) {
+            xml.ascii("<sheet name=\"").text(names.get(i)).ascii("\" sheetId=\"").number(i + 1)
+                    .ascii("\" r:id=\"rId").number(i + 1).ascii("\"/>");
+        }
+        xml.ascii("</sheets></workbook>").flush();
+        zip.closeEntry();
+    }
+
+    private void writeWorkbookRelationships(ZipOutputStream zip, XmlEncoder xml, int sheetCount) throws IOException {
+        zip.putNextEntry(new ZipEntry("xl/_rels/workbook.xml.rels"));
+        xml.ascii(XML_DECLARATION)
+                .ascii("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i = 0; i < sheetCount; i++) {
+            xml.ascii("<Relationship Id=\"rId").number(i + 1).ascii("\" Type=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                    .ascii("/worksheet\" Target=\"worksheets/sheet").number(i + 1).ascii(".xml\"/>");
+        }
+        xml.ascii("<Relationship Id=\"rId").number(sheetCount + 1).ascii("\" Type=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                .ascii("/styles\" Target=\"styles.xml\"/>");
+        if (strings != null) {
+            xml.ascii("<Relationship Id=\"rId").number(sheetCount + 2).ascii("\" Type=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                    .ascii("/sharedStrings\" Target=\"sharedStrings.xml\"/>");
+        }
+        xml.ascii("</Relationships>").flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * Styles of the workbook, the default and the bold header style followed by one style per fill
+     */
+    private synchronized void writeStyles(ZipOutputStream zip, XmlEncoder xml) throws IOException {
+        zip.putNextEntry(new ZipEntry("xl/styles.xml"));
+        xml.ascii(XML_DECLARATION)
+                .ascii("<styleSheet xmlns=\"").ascii(MAIN_NAMESPACE).ascii("\">")
+                .ascii("<fonts count=\"2\">")
+                .ascii("<font><sz val=\"11\"/><name val=\"Calibri\"/><family val=\"2\"/></font>")
+                .ascii("<font><b/><sz val=\"11\"/><name val=\"Calibri\"/><family val=\"2\"/></font>")
+                .ascii("</fonts>")
+                .ascii("<fills count=\"").number(2 + fillStyles.size()).ascii("\">")
+                .ascii("<fill><patternFill patternType=\"none\"/></fill>")
+                .ascii("<fill><patternFill patternType=\"gray125\"/></fill>");
+        for (IndexedColors fill : fillStyles.keySet()) {
+            xml.ascii("<fill><patternFill patternType=\"solid\"><fgColor indexed=\"").number(fill.getIndex())
+                    .ascii("\"/><bgColor indexed=\"64\"/></patternFill></fill>");
+        }
+        xml.ascii("</fills>")
+                .ascii("<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>")
+                .ascii("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>")
+                .ascii("<cellXfs count=\"").number(FIRST_FILL_STYLE + fillStyles.size()).ascii("\">")
+                .ascii("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>")
+                .ascii("<xf numFmtId=\"0\" fontId=\"1\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyFont=\"1\"/>");
+        for (int fillId = 2; fillId < 2 + fillStyles.size(); fillId++) {
+            xml.ascii("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"").number(fillId)
+                    .ascii("\" borderId=\"0\" xfId=\"0\" applyFill=\"1\"/>");
+        }
+        xml.ascii("</cellXfs>")
+                .ascii("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>")
+                .ascii("</styleSheet>").flush();
+        zip.closeEntry();
+    }
+
+    private void writeSharedStrings(ZipOutputStream zip, XmlEncoder xml) throws IOException {
+        zip.putNextEntry(new ZipEntry("xl/sharedStrings.xml"));
+        String[] table = strings.toArray();
+        xml.ascii(XML_DECLARATION)
+                .ascii("<sst xmlns=\"").ascii(MAIN_NAMESPACE).ascii("\" count=\"").number(strings.references.sum())
+                .ascii("\" uniqueCount=\"").number(table.length).ascii("\">");
+        for (String text : table) {
+            xml.ascii("<si>");
+            writeTextElement(xml, text);
+            xml.ascii("</si>");
+        }
+        xml.ascii("</sst>").flush();
+        zip.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // delete the temporary files holding the rows, also of sheets whose worker failed
+        IOException failure = null;
+        for (OoxmlSheetWriter sheet : sheets) {
+            try {
+                sheet.delete();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Columns with their widths and styles, the column style shows on empty cells without writing them
+     */
+    private static void writeColumns(XmlEncoder xml, int[] columnStyles, JsonToExcelUtil.ColumnWidths columnWidths)
+            throws IOException {
+        if (columnStyles.length == 0) {
+            return;
+        }
+        xml.ascii("<cols>");
+        for (int column = 0; column < columnStyles.length; column++) {
+            xml.ascii("<col min=\"").number(column + 1).ascii("\" max=\"").number(column + 1)
+                    .ascii("\" width=\"").number(columnWidths.getWidth(column)).ascii("\" customWidth=\"1\"");
+            if (columnStyles[column] != 0) {
+                xml.ascii(" style=\"").number(columnStyles[column]).ascii("\"");
+            }
+            xml.ascii("/>");
+        }
+        xml.ascii("</cols>");
+    }
+
+    private void writeHeaderRow(XmlEncoder xml, List<String> headerNames) throws IOException {
+        xml.ascii("<row r=\"1\">");
+        for (int column = 0; column < headerNames.size(); column++) {
+            xml.ascii("<c r=\"").column(column).ascii("1\" s=\"").number(HEADER_STYLE).ascii("\"");
+            if (headerNames.get(column) == null) {
+                xml.ascii("/>");
+            } else {
+                writeText(xml, headerNames.get(column));
+            }
+        }
+        xml.ascii("</row>");
+    }
+
+    private void writeRow(XmlEncoder xml, int rowNum, Object[] values, int[] columnStyles) throws IOException {
+        if (rowNum >= MAX_ROWS) {
+            throw new IllegalArgumentException("Invalid row number (" + rowNum + ") outside allowable range (0..1048575)");
+        }
+        xml.ascii("<row r=\"").number(rowNum + 1).ascii("\">");
+        for (int column = 0; column < values.length; column++) {
+            Object value = values[column];
+            if (value == null) {
+                continue;
+            }
+            xml.ascii("<c r=\"").column(column).number(rowNum + 1).ascii("\"");
+            if (columnStyles[column] != 0) {
+                xml.ascii(" s=\"").number(columnStyles[column]).ascii("\"");
+            }
+            if (value instanceof Double) {
+                double number = (Double) value;
+                // the errors POI turns these values into
+                if (Double.isNaN(number)) {
+                    xml.ascii(" t=\"e\"><v>#NUM!</v></c>");
+                } else if (Double.isInfinite(number)) {
+                    xml.ascii(" t=\"e\"><v>#DIV/0!</v></c>");
+                } else {
+                    xml.ascii("><v>").number(number).ascii("</v></c>");
+                }
+            } else if (value instanceof Integer) {
+                xml.ascii("><v>").number((Integer) value).ascii("</v></c>");
+            } else if (value instanceof Boolean) {
+                xml.ascii((Boolean) value ? " t=\"b\"><v>1</v></c>" : " t=\"b\"><v>0</v></c>");
+            } else {
+                writeText(xml, (String) value);
+            }
+        }
+        xml.ascii("</row>");
+    }
+
+    /**
+     * Type and text of a cell whose start tag is open, the text is referred to in the shared strings table or inline
+     */
+    private void writeText(XmlEncoder xml, String text) throws IOException {
+        if (strings != null) {
+            xml.ascii(" t=\"s\"><v>").number(strings.indexOf(text)).ascii("</v></c>");
+        } else {
+            checkLength(text);
+            xml.ascii(" t=\"inlineStr\"><is>");
+            writeTextElement(xml, text);
+            xml.ascii("</is></c>");
+        }
+    }
+
+    private static void writeTextElement(XmlEncoder xml, String text) throws IOException {
+        boolean preserve = !text.isEmpty()
+                && (Character.isWhitespace(text.charAt(0)) || Character.isWhitespace(text.charAt(text.length() - 1)));
+        xml.ascii(preserve ? "<t xml:space=\"preserve\">" : "<t>").text(text).ascii("</t>");
+    }
+
+    private static void checkLength(String text) {
+        if (text.length() > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException("The maximum length of cell contents (text) is 32767 characters");
+        }
+    }
+
+    private static int[] getColumnStyles(int[] columnStyles, IndexedColors[] columnFills, int fromColumn,
+                                         JsonToExcelOoxmlWriter workbook) {
+        if (columnFills.length > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Invalid column index (" + (columnFills.length - 1)
+                    + ").  Allowable column range for EXCEL2007 is (0..16383) or ('A'..'XFD')");
+        }
+        int[] styles = Arrays.copyOf(columnStyles, columnFills.length);
+        for (int i = fromColumn; i < columnFills.length; i++) {
+            styles[i] = columnFills[i] == null ? 0 : workbook.getFillStyle(columnFills[i]);
+        }
+        return styles;
+    }
+
+    /**
+     * Rows of a sheet encoded by its worker into a temporary file, the header row and the columns are kept
+     * until the sheet is written since headers may still be appended
+     */
+    private final class OoxmlSheetWriter implements JsonToExcelUtil.SheetWriter {
+
+        private final String name;
+        private final Path rows;
+        private final OutputStream file;
+        private final XmlEncoder xml;
+        private List<String> headerNames = Collections.emptyList();
+        private int[] columnStyles = new int[0];
+        private JsonToExcelUtil.ColumnWidths columnWidths;
+        private int lastRowNum;
+
+        private OoxmlSheetWriter(String name) throws IOException {
+            this.name = name;
+            this.rows = Files.createTempFile("json-to-excel-", ".xml");
+            this.file = Files.newOutputStream(rows);
+            this.xml = new XmlEncoder(file);
+        }
+
+        @Override
+        public void addHeaders(List<String> headerNames, IndexedColors[] columnFills, int fromColumn) {
+            columnStyles = getColumnStyles(columnStyles, columnFills, fromColumn, JsonToExcelOoxmlWriter.this);
+            this.headerNames = new ArrayList<>(headerNames);
+        }
+
+        @Override
+        public void addRows(JsonToExcelUtil.Layout layout) throws IOException {
+            for (int row = 0; row < layout.size(); row++) {
+                writeRow(xml, ++lastRowNum, layout.getRow(row), columnStyles);
+            }
+        }
+
+        @Override
+        public void finish(JsonToExcelUtil.ColumnWidths columnWidths) throws IOException {
+            xml.flush();
+            file.close();
+            this.columnWidths = columnWidths;
+        }
+
+        private void write(ZipOutputStream zip, XmlEncoder xml, String entryName) throws IOException {
+            zip.putNextEntry(new ZipEntry(entryName));
+            xml.ascii(XML_DECLARATION)
+                    .ascii("<worksheet xmlns=\"").ascii(MAIN_NAMESPACE).ascii("\" xmlns:r=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                    .ascii("\">");
+            writeColumns(xml, columnStyles, columnWidths);
+            xml.ascii("<sheetData>");
+            writeHeaderRow(xml, headerNames);
+            xml.flush();
+            Files.copy(rows, zip);
+            xml.ascii("</sheetData></worksheet>").flush();
+            zip.closeEntry();
+        }
+
+        private void delete() throws IOException {
+            file.close();
+            Files.deleteIfExists(rows);
+        }
+    }
+
+    /**
+     * Only sheet of a streamed workbook, its rows are encoded straight into the zip. The styles part follows
+     * the sheet, zip entries may come in any order.
+     */
+    private final class StreamingSheetWriter implements JsonToExcelUtil.SheetWriter {
+
+        private final String name;
+        private final JsonToExcelUtil.ColumnWidths columnWidths;
+        private final ZipOutputStream zip;
+        private final XmlEncoder xml;
+        private List<String> headerNames = Collections.emptyList();
+        private int[] columnStyles = new int[0];
+        private boolean started;
+        private int lastRowNum;
+
+        private StreamingSheetWriter(String name, JsonToExcelUtil.ColumnWidths columnWidths, OutputStream out)
+                throws IOException {
+            this.name = name;
+            this.columnWidths = columnWidths;
+            this.zip = openZip(out);
+            this.xml = new XmlEncoder(zip);
+            writeContentTypes(zip, xml, 1);
+            writeRelationships(zip, xml);
+            writeWorkbook(zip, xml, Collections.singletonList(name));
+            writeWorkbookRelationships(zip, xml, 1);
+        }
+
+        @Override
+        public void addHeaders(List<String> headerNames, IndexedColors[] columnFills, int fromColumn) {
+            if (started) {
+                throw new IllegalStateException("the header row of streamed sheet " + name + " is already written");
+            }
+            columnStyles = getColumnStyles(columnStyles, columnFills, fromColumn, JsonToExcelOoxmlWriter.this);
+            this.headerNames = new ArrayList<>(headerNames);
+        }
+
+        @Override
+        public void addRows(JsonToExcelUtil.Layout layout) throws IOException {
+            start();
+            for (int row = 0; row < layout.size(); row++) {
+                writeRow(xml, ++lastRowNum, layout.getRow(row), columnStyles);
+            }
+        }
+
+        private void start() throws IOException {
+            if (started) {
+                return;
+            }
+            started = true;
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            xml.ascii(XML_DECLARATION)
+                    .ascii("<worksheet xmlns=\"").ascii(MAIN_NAMESPACE).ascii("\" xmlns:r=\"").ascii(RELATIONSHIPS_NAMESPACE)
+                    .ascii("\">");
+            writeColumns(xml, columnStyles, columnWidths);
+            xml.ascii("<sheetData>");
+            writeHeaderRow(xml, headerNames);
+        }
+
+        @Override
+        public void finish(JsonToExcelUtil.ColumnWidths columnWidths) throws IOException {
+            start();
+            xml.ascii("</sheetData></worksheet>").flush();
+            zip.closeEntry();
+            writeStyles(zip, xml);
+            zip.close();
+        }
+    }
+
+    /**
+     * Text of the cells of all sheets, each distinct text stored once and referred to by its index
+     */
+    private static final class SharedStrings {
+
+        private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final LongAdder references = new LongAdder();
+
+        int indexOf(String text) {
+            checkLength(text);
+            references.increment();
+            Integer index = indexes.get(text);
+            return index != null ? index : indexes.computeIfAbsent(text, key -> size.getAndIncrement());
+        }
+
+        String[] toArray() {
+            String[] table = new String[size.get()];
+            indexes.forEach((text, index) -> table[index] = text);
+            return table;
+        }
+    }
+
+    /**
+     * UTF-8 encoded XML collected in a reused byte array and drained to the sink whenever it fills up
+     */
+    private static final class XmlEncoder {
+
+        private static final int CAPACITY = 1 << 16;
+        private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+        private final OutputStream out;
+        private byte[] bytes = new byte[CAPACITY];
+        private int size;
+        // cell reference letters of the columns seen so far
+        private byte[][] columnNames = new byte[0][];
+
+        private XmlEncoder(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Append text known to be ASCII and free of markup
+         */
+        XmlEncoder ascii(String text) throws IOException {
+            ensure(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                bytes[size++] = (byte) text.charAt(i);
+            }
+            return this;
+        }
+
+        XmlEncoder number(long value) throws IOException {
+            ensure(20);
+            if (value < 0) {
+                if (value == Long.MIN_VALUE) {
+                    return ascii(Long.toString(value));
+                }
+                bytes[size++] = '-';
+                value = -value;
+            }
+            int end = size + digits(value);
+            for (int i = end - 1; i >= size; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            size = end;
+            return this;
+        }
+
+        XmlEncoder number(double value) throws IOException {
+            // whole numbers are written as integers, sparing the string of the decimal form
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                return number((long) value);
+            }
+            return ascii(Double.toString(value));
+        }
+
+        private static int digits(long value) {
+            int digits = 1;
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+            return digits;
+        }
+
+        /**
+         * Append the letters of a cell reference, A for the first column
+         */
+        XmlEncoder column(int column) throws IOException {
+            if (column >= columnNames.length) {
+                columnNames = Arrays.copyOf(columnNames, Math.max(column + 1, columnNames.length * 2));
+            }
+            if (columnNames[column] == null) {
+                StringBuilder name = new StringBuilder();
+                for (int i = column + 1; i > 0; i = (i - 1) / 26) {
+                    name.insert(0, (char) ('A' + (i - 1) % 26));
+                }
+                columnNames[column] = name.toString().getBytes();
+            }
+            ensure(columnNames[column].length);
+            System.arraycopy(columnNames[column], 0, bytes, size, columnNames[column].length);
+            size += columnNames[column].length;
+            return this;
+        }
+
+        /**
+         * Append text escaped for an element or attribute. Characters XML cannot hold are written as _xHHHH_,
+         * the way Excel escapes them, and text that looks like such an escape gets its underscore escaped.
+         */
+        XmlEncoder text(String text) throws IOException {
+            // an escape is the longest a character gets
+            ensure(7 * text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    if (c == '&') {
+                        put("&amp;");
+                    } else if (c == '<') {
+                        put("&lt;");
+                    } else if (c == '>') {
+                        put("&gt;");
+                    } else if (c == '"') {
+                        put("&quot;");
+                    } else if (c == '_' && isEscape(text, i)) {
+                        put("_x005F_");
+                    } else if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+                        escape(c);
+                    } else {
+                        bytes[size++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xC0 | c >> 6);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[size++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogates are replaced like String.getBytes does
+                    bytes[size++] = '?';
+                } else if (c >= 0xFFFE) {
+                    escape(c);
+                } else {
+                    bytes[size++] = (byte) (0xE0 | c >> 12);
+                    bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return this;
+        }
+
+        private static boolean isEscape(String text, int start) {
+            if (start + 6 >= text.length() || text.charAt(start + 1) != 'x' || text.charAt(start + 6) != '_') {
+                return false;
+            }
+            for (int i = start + 2; i < start + 6; i++) {
+                if (Character.digit(text.charAt(i), 16) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void escape(char c) {
+            put("_x");
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                bytes[size++] = HEX[c >> shift & 0xF];
+            }
+            bytes[size++] = '_';
+        }
+
+        private void put(String ascii) {
+            for (int i = 0; i < ascii.length(); i++) {
+                bytes[size++] = (byte) ascii.charAt(i);
+            }
+        }
+
+        private void ensure(int length) throws IOException {
+            if (size + length > bytes.length) {
+                flush();
+                if (length > bytes.length) {
+                    bytes = new byte[length];
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(bytes, 0, size);
+            size = 0;
+        }
+    }
+}